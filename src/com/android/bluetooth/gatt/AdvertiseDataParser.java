@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Parser for the AD structures of raw advertising data.
+ *
+ * The parser walks the data once and keeps the service UUIDs (16, 32 and
+ * 128-bit, expanded with the Bluetooth base UUID) as primitive msb/lsb pairs
+ * together with the manufacturer ids. The internal buffers are reused by the
+ * next call to {@link #parse}, so a parser instance must only be used from a
+ * single thread.
+ *
+ * @hide
+ */
+/* package */class AdvertiseDataParser {
+    // AD types defined in the Bluetooth assigned numbers.
+    private static final int DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL = 0x02;
+    private static final int DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE = 0x03;
+    private static final int DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL = 0x04;
+    private static final int DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE = 0x05;
+    private static final int DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL = 0x06;
+    private static final int DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE = 0x07;
+    private static final int DATA_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    // 00000000-0000-1000-8000-00805F9B34FB
+    static final long BASE_UUID_MSB = 0x0000000000001000L;
+    static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    // Advertising data plus scan response of a legacy advertisement.
+    private static final int INITIAL_CAPACITY = 31;
+
+    private long[] mUuidMsb = new long[INITIAL_CAPACITY];
+    private long[] mUuidLsb = new long[INITIAL_CAPACITY];
+    private int mUuidCount;
+
+    private int[] mManufacturerIds = new int[INITIAL_CAPACITY];
+    private int mManufacturerIdCount;
+
+    /**
+     * Parse {@code data}, replacing the result of the previous call.
+     *
+     * @return false if the data is malformed. Fields that were parsed before
+     *         the malformed structure are still available.
+     */
+    boolean parse(byte[] data) {
+        mUuidCount = 0;
+        mManufacturerIdCount = 0;
+        if (data == null) return false;
+
+        int offset = 0;
+        while (offset < data.length) {
+            int len = data[offset++] & 0xFF;
+            if (len == 0) break;
+            if (offset + len > data.length) return false;
+
+            int type = data[offset] & 0xFF;
+            int start = offset + 1;
+            int end = offset + len;
+            switch (type) {
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                    for (int i = start; i + 2 <= end; i += 2) {
+                        addUuid((littleEndianToLong(data, i, 2) << 32) | BASE_UUID_MSB,
+                                BASE_UUID_LSB);
+                    }
+                    break;
+
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                    for (int i = start; i + 4 <= end; i += 4) {
+                        addUuid((littleEndianToLong(data, i, 4) << 32) | BASE_UUID_MSB,
+                                BASE_UUID_LSB);
+                    }
+                    break;
+
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                    for (int i = start; i + 16 <= end; i += 16) {
+                        addUuid(littleEndianToLong(data, i + 8, 8),
+                                littleEndianToLong(data, i, 8));
+                    }
+                    break;
+
+                case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    if (end - start >= 2) {
+                        addManufacturerId((int) littleEndianToLong(data, start, 2));
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+            offset = end;
+        }
+        return true;
+    }
+
+    int getServiceUuidCount() {
+        return mUuidCount;
+    }
+
+    long getServiceUuidMsb(int index) {
+        return mUuidMsb[index];
+    }
+
+    long getServiceUuidLsb(int index) {
+        return mUuidLsb[index];
+    }
+
+    boolean hasServiceUuid(long msb, long lsb) {
+        for (int i = 0; i < mUuidCount; i++) {
+            if (mUuidMsb[i] == msb && mUuidLsb[i] == lsb) return true;
+        }
+        return false;
+    }
+
+    boolean hasServiceUuid(UUID uuid) {
+        return hasServiceUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    int getManufacturerIdCount() {
+        return mManufacturerIdCount;
+    }
+
+    int getManufacturerId(int index) {
+        return mManufacturerIds[index];
+    }
+
+    private void addUuid(long msb, long lsb) {
+        if (mUuidCount == mUuidMsb.length) {
+            mUuidMsb = Arrays.copyOf(mUuidMsb, mUuidCount * 2);
+            mUuidLsb = Arrays.copyOf(mUuidLsb, mUuidCount * 2);
+        }
+        mUuidMsb[mUuidCount] = msb;
+        mUuidLsb[mUuidCount] = lsb;
+        mUuidCount++;
+    }
+
+    private void addManufacturerId(int id) {
+        if (mManufacturerIdCount == mManufacturerIds.length) {
+            mManufacturerIds = Arrays.copyOf(mManufacturerIds, mManufacturerIdCount * 2);
+        }
+        mManufacturerIds[mManufacturerIdCount++] = id;
+    }
+
+    private static long littleEndianToLong(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -27,6 +27,7 @@ import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
@@ -34,14 +35,20 @@ import com.android.bluetooth.btservice.AdapterService;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Manages Bluetooth LE advertising operations and interacts with bluedroid stack. TODO: add tests.
  *
+ * Starting an advertising instance takes several controller round trips. The steps of one
+ * instance are issued one after the other as the stack acknowledges them, but the steps of
+ * different instances are pipelined: completions are matched to their instance by clientIf,
+ * so the handler never blocks and a start issued while another one is in flight goes out right
+ * away. {@link #startAdvertising(List)} starts several advertisers at once.
+ *
  * @hide
  */
 class AdvertiseManager {
@@ -54,17 +61,37 @@ class AdvertiseManager {
     // Message for advertising operations.
     private static final int MSG_START_ADVERTISING = 0;
     private static final int MSG_STOP_ADVERTISING = 1;
+    private static final int MSG_START_ADVERTISING_BULK = 2;
+    private static final int MSG_OPERATION_COMPLETE = 3;
+    private static final int MSG_OPERATION_TIMEOUT = 4;
 
     private final GattService mService;
     private final AdapterService mAdapterService;
     private final Set<AdvertiseClient> mAdvertiseClients;
     private final AdvertiseNative mAdvertiseNative;
 
+    // Advertising instances being started, keyed by clientIf.
+    private final SparseArray<StartOperation> mPendingStarts = new SparseArray<StartOperation>();
+    // Clients whose instance is being disabled after a failed start. The app already got the
+    // start failure, so the disable is not reported to it.
+    private final Set<Integer> mFailedStartClients = new HashSet<Integer>();
+
     // Handles advertise operations.
     private ClientHandler mHandler;
 
-    // CountDownLatch for blocking advertise operations.
-    private CountDownLatch mLatch;
+    // Start of an advertising instance, advanced as the stack acknowledges each step.
+    private static class StartOperation {
+        static final int STEP_ENABLE = 0;
+        static final int STEP_ADVERTISE_DATA = 1;
+        static final int STEP_SCAN_RESPONSE = 2;
+
+        final AdvertiseClient client;
+        int step = STEP_ENABLE;
+
+        StartOperation(AdvertiseClient client) {
+            this.client = client;
+        }
+    }
 
     /**
      * Constructor of {@link AdvertiseManager}.
@@ -89,6 +116,10 @@ class AdvertiseManager {
     void cleanup() {
         logd("advertise clients cleared");
         mAdvertiseClients.clear();
+        mPendingStarts.clear();
+        synchronized (mFailedStartClients) {
+            mFailedStartClients.clear();
+        }
 
         if (mHandler != null) {
             // Shut down the thread
@@ -116,6 +147,22 @@ class AdvertiseManager {
         mHandler.sendMessage(message);
     }
 
+    /**
+     * Start BLE advertising for several clients at once. The controller commands of the
+     * different clients are issued back to back instead of one client after the other.
+     *
+     * @param clients Advertise clients.
+     */
+    void startAdvertising(List<AdvertiseClient> clients) {
+        if (clients == null || clients.isEmpty()) {
+            return;
+        }
+        Message message = new Message();
+        message.what = MSG_START_ADVERTISING_BULK;
+        message.obj = clients;
+        mHandler.sendMessage(message);
+    }
+
     /**
      * Stop BLE advertising.
      */
@@ -136,12 +183,24 @@ class AdvertiseManager {
      * @param status Status of the callback.
      */
     void callbackDone(int clientIf, int status) {
-        if (status == AdvertiseCallback.ADVERTISE_SUCCESS) {
-            mLatch.countDown();
-        } else {
-            // Note in failure case we'll wait for the latch to timeout(which takes 100ms) and
-            // the mClientHandler thread will be blocked till timeout.
-            postCallback(clientIf, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+        Handler handler = mHandler;
+        if (handler == null) {
+            return;
+        }
+        Message message = new Message();
+        message.what = MSG_OPERATION_COMPLETE;
+        message.arg1 = clientIf;
+        message.arg2 = status;
+        handler.sendMessage(message);
+    }
+
+    /**
+     * Returns true if the instance of the client was disabled after a failed start, in which
+     * case the disable must not be reported to the app. Called from the stack callback thread.
+     */
+    boolean consumeFailedStartDisable(int clientIf) {
+        synchronized (mFailedStartClients) {
+            return mFailedStartClients.remove(clientIf);
         }
     }
 
@@ -176,13 +235,25 @@ class AdvertiseManager {
         @Override
         public void handleMessage(Message msg) {
             logd("message : " + msg.what);
-            AdvertiseClient client = (AdvertiseClient) msg.obj;
             switch (msg.what) {
                 case MSG_START_ADVERTISING:
-                    handleStartAdvertising(client);
+                    handleStartAdvertising((AdvertiseClient) msg.obj);
                     break;
                 case MSG_STOP_ADVERTISING:
-                    handleStopAdvertising(client);
+                    handleStopAdvertising((AdvertiseClient) msg.obj);
+                    break;
+                case MSG_START_ADVERTISING_BULK:
+                    @SuppressWarnings("unchecked")
+                    List<AdvertiseClient> clients = (List<AdvertiseClient>) msg.obj;
+                    for (AdvertiseClient client : clients) {
+                        handleStartAdvertising(client);
+                    }
+                    break;
+                case MSG_OPERATION_COMPLETE:
+                    handleOperationComplete(msg.arg1, msg.arg2);
+                    break;
+                case MSG_OPERATION_TIMEOUT:
+                    handleOperationTimeout((StartOperation) msg.obj);
                     break;
                 default:
                     // Shouldn't happen.
@@ -194,22 +265,105 @@ class AdvertiseManager {
         private void handleStartAdvertising(AdvertiseClient client) {
             Utils.enforceAdminPermission(mService);
             int clientIf = client.clientIf;
-            if (mAdvertiseClients.contains(clientIf)) {
+            if (mAdvertiseClients.contains(client) || mPendingStarts.get(clientIf) != null) {
                 postCallback(clientIf, AdvertiseCallback.ADVERTISE_FAILED_ALREADY_STARTED);
                 return;
             }
 
-            if (mAdvertiseClients.size() >= maxAdvertiseInstances()) {
+            if (mAdvertiseClients.size() + mPendingStarts.size() >= maxAdvertiseInstances()) {
                 postCallback(clientIf,
                         AdvertiseCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS);
                 return;
             }
-            if (!mAdvertiseNative.startAdverising(client)) {
+            if (!mAdvertiseNative.isAdvertisingSupported()) {
                 postCallback(clientIf, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
                 return;
             }
-            mAdvertiseClients.add(client);
-            postCallback(clientIf, AdvertiseCallback.ADVERTISE_SUCCESS);
+            logd("starting advertising for client " + clientIf);
+            // Forget a failed start whose disable was never acknowledged, so that the next
+            // stop of this client is reported.
+            consumeFailedStartDisable(clientIf);
+            StartOperation operation = new StartOperation(client);
+            mPendingStarts.put(clientIf, operation);
+            mAdvertiseNative.enableAdvertising(client);
+            scheduleTimeout(operation);
+        }
+
+        // Handles the acknowledgement of the current step of a start operation.
+        private void handleOperationComplete(int clientIf, int status) {
+            StartOperation operation = mPendingStarts.get(clientIf);
+            if (operation == null) {
+                logd("no pending start for client " + clientIf);
+                return;
+            }
+            removeMessages(MSG_OPERATION_TIMEOUT, operation);
+            if (status != AdvertiseCallback.ADVERTISE_SUCCESS) {
+                // A failed enable leaves nothing behind, a failed data step leaves the
+                // instance enabled.
+                if (operation.step != StartOperation.STEP_ENABLE) {
+                    disableFailedStart(operation.client);
+                }
+                finishStart(operation, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+                return;
+            }
+            if (issueNextStep(operation)) {
+                scheduleTimeout(operation);
+            } else {
+                finishStart(operation, AdvertiseCallback.ADVERTISE_SUCCESS);
+            }
+        }
+
+        private void handleOperationTimeout(StartOperation operation) {
+            if (mPendingStarts.get(operation.client.clientIf) != operation) {
+                return;
+            }
+            Log.e(TAG, "advertise operation timed out for client " + operation.client.clientIf
+                    + " at step " + operation.step);
+            // The step may still complete in the controller, don't leave the instance
+            // advertising behind a failed start.
+            disableFailedStart(operation.client);
+            finishStart(operation, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+        }
+
+        // Issues the next step of a start operation. Returns false if there is nothing left
+        // to wait for.
+        private boolean issueNextStep(StartOperation operation) {
+            AdvertiseClient client = operation.client;
+            while (++operation.step <= StartOperation.STEP_SCAN_RESPONSE) {
+                boolean isScanResponse = operation.step == StartOperation.STEP_SCAN_RESPONSE;
+                AdvertiseData data = isScanResponse ? client.scanResponse : client.advertiseData;
+                if (data == null) {
+                    continue;
+                }
+                mAdvertiseNative.setAdvertisingData(client, data, isScanResponse);
+                // Single advertising only sets the advertise data, which is not acknowledged.
+                return mAdapterService.isMultiAdvertisementSupported();
+            }
+            return false;
+        }
+
+        private void finishStart(StartOperation operation, int status) {
+            int clientIf = operation.client.clientIf;
+            mPendingStarts.remove(clientIf);
+            if (status == AdvertiseCallback.ADVERTISE_SUCCESS) {
+                mAdvertiseClients.add(operation.client);
+            }
+            postCallback(clientIf, status);
+        }
+
+        private void disableFailedStart(AdvertiseClient client) {
+            if (mAdapterService.isMultiAdvertisementSupported()) {
+                // Only multi advertising reports the disable.
+                synchronized (mFailedStartClients) {
+                    mFailedStartClients.add(client.clientIf);
+                }
+            }
+            mAdvertiseNative.disableAdvertising(client);
+        }
+
+        private void scheduleTimeout(StartOperation operation) {
+            sendMessageDelayed(obtainMessage(MSG_OPERATION_TIMEOUT, operation),
+                    OPERATION_TIME_OUT_MILLIS);
         }
 
         // Handles stop advertising.
@@ -219,6 +373,13 @@ class AdvertiseManager {
                 return;
             }
             logd("stop advertise for client " + client.clientIf);
+            StartOperation operation = mPendingStarts.get(client.clientIf);
+            if (operation != null) {
+                // The start is cancelled, it still gets a result.
+                removeMessages(MSG_OPERATION_TIMEOUT, operation);
+                mPendingStarts.remove(client.clientIf);
+                postCallback(client.clientIf, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+            }
             mAdvertiseNative.stopAdvertising(client);
             if (client.appDied) {
                 logd("app died - unregistering client : " + client.clientIf);
@@ -275,48 +436,9 @@ class AdvertiseManager {
         private static final int ADVERTISING_EVENT_TYPE_NON_CONNECTABLE = 3;
 
         // TODO: Extract advertising logic into interface as we have multiple implementations now.
-        boolean startAdverising(AdvertiseClient client) {
-            if (!mAdapterService.isMultiAdvertisementSupported() &&
-                    !mAdapterService.isPeripheralModeSupported()) {
-                return false;
-            }
-            if (mAdapterService.isMultiAdvertisementSupported()) {
-                return startMultiAdvertising(client);
-            }
-            return startSingleAdvertising(client);
-        }
-
-        boolean startMultiAdvertising(AdvertiseClient client) {
-            logd("starting multi advertising");
-            resetCountDownLatch();
-            enableAdvertising(client);
-            if (!waitForCallback()) {
-                return false;
-            }
-            resetCountDownLatch();
-            setAdvertisingData(client, client.advertiseData, false);
-            if (!waitForCallback()) {
-                return false;
-            }
-            if (client.scanResponse != null) {
-                resetCountDownLatch();
-                setAdvertisingData(client, client.scanResponse, true);
-                if (!waitForCallback()) {
-                    return false;
-                }
-            }
-            return true;
-        }
-
-        boolean startSingleAdvertising(AdvertiseClient client) {
-            logd("starting single advertising");
-            resetCountDownLatch();
-            enableAdvertising(client);
-            if (!waitForCallback()) {
-                return false;
-            }
-            setAdvertisingData(client, client.advertiseData, false);
-            return true;
+        boolean isAdvertisingSupported() {
+            return mAdapterService.isMultiAdvertisementSupported()
+                    || mAdapterService.isPeripheralModeSupported();
         }
 
         void stopAdvertising(AdvertiseClient client) {
@@ -333,20 +455,16 @@ class AdvertiseManager {
             }
         }
 
-        private void resetCountDownLatch() {
-            mLatch = new CountDownLatch(1);
-        }
-
-        // Returns true if mLatch reaches 0, false if timeout or interrupted.
-        private boolean waitForCallback() {
-            try {
-                return mLatch.await(OPERATION_TIME_OUT_MILLIS, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                return false;
+        // Disables the instance left behind by a failed start.
+        void disableAdvertising(AdvertiseClient client) {
+            if (mAdapterService.isMultiAdvertisementSupported()) {
+                gattClientDisableAdvNative(client.clientIf);
+            } else {
+                gattAdvertiseNative(client.clientIf, false);
             }
         }
 
-        private void enableAdvertising(AdvertiseClient client) {
+        void enableAdvertising(AdvertiseClient client) {
             int clientIf = client.clientIf;
             int minAdvertiseUnit = (int) getAdvertisingIntervalUnit(client.settings);
             int maxAdvertiseUnit = minAdvertiseUnit + ADVERTISING_INTERVAL_DELTA_UNIT;
@@ -367,7 +485,7 @@ class AdvertiseManager {
             }
         }
 
-        private void setAdvertisingData(AdvertiseClient client, AdvertiseData data,
+        void setAdvertisingData(AdvertiseClient client, AdvertiseData data,
                 boolean isScanResponse) {
             if (data == null) {
                 return;
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+
+import java.util.UUID;
+
+/**
+ * Caches the service and characteristic UUIDs of the characteristics that
+ * notify, so that a stream of notifications from the same characteristic
+ * does not allocate new UUID objects for every packet.
+ *
+ * Entries are keyed by connection and by service type, service instance
+ * and characteristic instance. The UUIDs reported with a notification are
+ * compared against the cached ones, so a reused instance ID never returns
+ * stale UUIDs. Not thread safe, only used from the stack callback thread.
+ *
+ * @hide
+ */
+/* package */class CharacteristicUuidCache {
+
+    /**
+     * UUIDs of one characteristic.
+     */
+    static class Entry {
+        final long srvcUuidLsb;
+        final long srvcUuidMsb;
+        final long charUuidLsb;
+        final long charUuidMsb;
+        final ParcelUuid srvcUuid;
+        final ParcelUuid charUuid;
+        // Whether delivering the characteristic requires the privileged permission.
+        final boolean isPrivileged;
+
+        Entry(long srvcUuidLsb, long srvcUuidMsb, long charUuidLsb, long charUuidMsb,
+                boolean isPrivileged) {
+            this.srvcUuidLsb = srvcUuidLsb;
+            this.srvcUuidMsb = srvcUuidMsb;
+            this.charUuidLsb = charUuidLsb;
+            this.charUuidMsb = charUuidMsb;
+            this.srvcUuid = new ParcelUuid(new UUID(srvcUuidMsb, srvcUuidLsb));
+            this.charUuid = new ParcelUuid(new UUID(charUuidMsb, charUuidLsb));
+            this.isPrivileged = isPrivileged;
+        }
+
+        boolean matches(long srvcUuidLsb, long srvcUuidMsb, long charUuidLsb,
+                long charUuidMsb) {
+            return this.srvcUuidLsb == srvcUuidLsb && this.srvcUuidMsb == srvcUuidMsb
+                    && this.charUuidLsb == charUuidLsb && this.charUuidMsb == charUuidMsb;
+        }
+    }
+
+    // Entries of each connection, keyed by connId and then by characteristic key.
+    private final SparseArray<SparseArray<Entry>> mConnections =
+            new SparseArray<SparseArray<Entry>>();
+
+    /**
+     * Returns the cached entry of a characteristic, or null if it is not cached yet.
+     */
+    Entry get(int connId, int srvcType, int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
+            int charInstId, long charUuidLsb, long charUuidMsb) {
+        SparseArray<Entry> entries = mConnections.get(connId);
+        if (entries == null) return null;
+        Entry entry = entries.get(getKey(srvcType, srvcInstId, charInstId));
+        if (entry == null || !entry.matches(srvcUuidLsb, srvcUuidMsb, charUuidLsb, charUuidMsb)) {
+            return null;
+        }
+        return entry;
+    }
+
+    void put(int connId, int srvcType, int srvcInstId, int charInstId, Entry entry) {
+        SparseArray<Entry> entries = mConnections.get(connId);
+        if (entries == null) {
+            entries = new SparseArray<Entry>();
+            mConnections.put(connId, entries);
+        }
+        entries.put(getKey(srvcType, srvcInstId, charInstId), entry);
+    }
+
+    void removeConnId(int connId) {
+        mConnections.remove(connId);
+    }
+
+    void clear() {
+        mConnections.clear();
+    }
+
+    // Instance IDs are 8 bit values in the stack.
+    private static int getKey(int srvcType, int srvcInstId, int charInstId) {
+        return ((srvcType & 0xFF) << 16) | ((srvcInstId & 0xFF) << 8) | (charInstId & 0xFF);
+    }
+}
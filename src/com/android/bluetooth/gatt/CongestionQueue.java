@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+/**
+ * Bounded queue of the write callbacks held back while a connection is
+ * congested. Holding the callback is what paces the app, since it does not
+ * issue its next write before the previous one is acknowledged.
+ *
+ * The queue is a fixed size ring buffer. Once it is full, offering a new
+ * callback evicts the oldest one, which is then delivered right away so the
+ * app never waits for a callback that was dropped.
+ *
+ * @hide
+ */
+/* package */class CongestionQueue {
+    static final int DEFAULT_CAPACITY = 32;
+
+    private final CallbackInfo[] mEntries;
+    private int mHead;
+    private int mSize;
+
+    private boolean mCongested;
+    private int mCongestionCount;
+    private int mMaxDepth;
+    private int mOverflowCount;
+
+    CongestionQueue(int capacity) {
+        mEntries = new CallbackInfo[Math.max(1, capacity)];
+    }
+
+    synchronized boolean isCongested() {
+        return mCongested;
+    }
+
+    synchronized void setCongested(boolean congested) {
+        if (congested && !mCongested) mCongestionCount++;
+        mCongested = congested;
+    }
+
+    /**
+     * Queue a callback.
+     *
+     * @return the evicted oldest callback if the queue was full, null otherwise.
+     */
+    synchronized CallbackInfo offer(CallbackInfo callbackInfo) {
+        CallbackInfo evicted = null;
+        if (mSize == mEntries.length) {
+            evicted = poll();
+            mOverflowCount++;
+        }
+        mEntries[(mHead + mSize) % mEntries.length] = callbackInfo;
+        mSize++;
+        mMaxDepth = Math.max(mMaxDepth, mSize);
+        return evicted;
+    }
+
+    /**
+     * Remove and return the oldest callback, or null if the queue is empty.
+     */
+    synchronized CallbackInfo poll() {
+        if (mSize == 0) return null;
+        CallbackInfo callbackInfo = mEntries[mHead];
+        mEntries[mHead] = null;
+        mHead = (mHead + 1) % mEntries.length;
+        mSize--;
+        return callbackInfo;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Logs debug information.
+     */
+    synchronized void dump(StringBuilder sb) {
+        sb.append("      Congested: " + mCongested + " (" + mCongestionCount + " times)\n");
+        sb.append("      Queued callbacks: " + mSize + "/" + mEntries.length + ", max "
+                + mMaxDepth + ", overflows " + mOverflowCount + "\n");
+    }
+}
@@ -27,10 +27,14 @@ import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Helper class that keeps track of registered GATT applications.
  * This class manages application callbacks and keeps track of GATT connections.
+ * Lookups are lock free; updates are serialized on the map so that the
+ * application and connection indices stay consistent with each other.
  * @hide
  */
 /*package*/ class ContextMap<T> {
@@ -44,6 +48,9 @@ import java.util.UUID;
         String address;
         int appId;
 
+        /** Callbacks held back while the connection is congested */
+        final CongestionQueue congestionQueue = new CongestionQueue(mCongestionQueueSize);
+
         Connection(int connId, String address,int appId) {
             this.connId = connId;
             this.address = address;
@@ -58,7 +65,7 @@ import java.util.UUID;
         /** The UUID of the application */
         UUID uuid;
 
-        /** The id of the application */
+        /** The id of the application, set through {@link ContextMap#setId} */
         int id;
 
         /** Application callbacks */
@@ -67,11 +74,9 @@ import java.util.UUID;
         /** Death receipient */
         private IBinder.DeathRecipient mDeathRecipient;
 
-        /** Flag to signal that transport is congested */
-        Boolean isCongested = false;
-
-        /** Internal callback info queue, waiting to be send on congestion clear */
-        private List<CallbackInfo> congestionQueue = new ArrayList<CallbackInfo>();
+        /** Connections of the application, keyed by device address */
+        final ConcurrentMap<String, Connection> connections =
+                new ConcurrentHashMap<String, Connection>();
 
         /**
          * Creates a new app context.
@@ -107,71 +112,56 @@ import java.util.UUID;
                 }
             }
         }
-
-        void queueCallback(CallbackInfo callbackInfo) {
-            congestionQueue.add(callbackInfo);
-        }
-
-        CallbackInfo popQueuedCallback() {
-            if (congestionQueue.size() == 0) return null;
-            return congestionQueue.remove(0);
-        }
     }
 
-    /** Our internal application list */
-    List<App> mApps = new ArrayList<App>();
+    /** Registered applications, keyed by UUID and by application ID */
+    private final ConcurrentMap<UUID, App> mAppsByUuid = new ConcurrentHashMap<UUID, App>();
+    private final ConcurrentMap<Integer, App> mAppsById = new ConcurrentHashMap<Integer, App>();
 
-    /** Internal list of connected devices **/
-    Set<Connection> mConnections = new HashSet<Connection>();
+    /** Capacity of the congestion queue of new connections */
+    private volatile int mCongestionQueueSize = CongestionQueue.DEFAULT_CAPACITY;
+
+    /** Connected devices, keyed by connection ID **/
+    private final ConcurrentMap<Integer, Connection> mConnections =
+            new ConcurrentHashMap<Integer, Connection>();
 
     /**
      * Add an entry to the application context list.
      */
-    void add(UUID uuid, T callback) {
-        synchronized (mApps) {
-            mApps.add(new App(uuid, callback));
-        }
+    synchronized void add(UUID uuid, T callback) {
+        mAppsByUuid.put(uuid, new App(uuid, callback));
+    }
+
+    /**
+     * Assign the application ID once the application is registered.
+     */
+    synchronized void setId(App app, int id) {
+        mAppsById.remove(app.id, app);
+        app.id = id;
+        mAppsById.put(id, app);
     }
 
     /**
      * Remove the context for a given UUID
      */
-    void remove(UUID uuid) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while(i.hasNext()) {
-                App entry = i.next();
-                if (entry.uuid.equals(uuid)) {
-                    entry.unlinkToDeath();
-                    i.remove();
-                    break;
-                }
-            }
+    synchronized void remove(UUID uuid) {
+        App entry = mAppsByUuid.remove(uuid);
+        if (entry != null) {
+            mAppsById.remove(entry.id, entry);
+            entry.unlinkToDeath();
         }
     }
 
     /**
      * Remove the context for a given application ID.
      */
-    void remove(int id) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while(i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    entry.unlinkToDeath();
-                    i.remove();
-                    break;
-                }
-            }
-        }
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while(i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.appId == id) {
-                    i.remove();
-                }
+    synchronized void remove(int id) {
+        App entry = mAppsById.remove(id);
+        if (entry != null) {
+            mAppsByUuid.remove(entry.uuid, entry);
+            entry.unlinkToDeath();
+            for (Connection connection : entry.connections.values()) {
+                mConnections.remove(connection.connId, connection);
             }
         }
     }
@@ -179,54 +169,58 @@ import java.util.UUID;
     /**
      * Add a new connection for a given application ID.
      */
-    void addConnection(int id, int connId, String address) {
-        synchronized (mConnections) {
-            App entry = getById(id);
-            if (entry != null){
-                mConnections.add(new Connection(connId, address, id));
-            }
+    synchronized void addConnection(int id, int connId, String address) {
+        App entry = getById(id);
+        if (entry != null){
+            Connection connection = new Connection(connId, address, id);
+            mConnections.put(connId, connection);
+            entry.connections.put(address, connection);
         }
     }
 
     /**
      * Remove a connection with the given ID.
      */
-    void removeConnection(int id, int connId) {
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while(i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    i.remove();
-                }
-            }
+    synchronized void removeConnection(int id, int connId) {
+        Connection connection = mConnections.remove(connId);
+        if (connection == null) return;
+        App entry = mAppsById.get(connection.appId);
+        if (entry != null) {
+            entry.connections.remove(connection.address, connection);
         }
     }
 
+    /**
+     * Set the capacity of the congestion queue of connections made from now on.
+     */
+    void setCongestionQueueSize(int size) {
+        mCongestionQueueSize = size;
+    }
+
+    /**
+     * Returns the congestion queue of a connection, or null if there is no such connection.
+     */
+    CongestionQueue getCongestionQueue(int connId) {
+        Connection connection = mConnections.get(connId);
+        return connection == null ? null : connection.congestionQueue;
+    }
+
     /**
      * Get an application context by ID.
      */
     App getById(int id) {
-        Iterator<App> i = mApps.iterator();
-        while(i.hasNext()) {
-            App entry = i.next();
-            if (entry.id == id) return entry;
-        }
-        Log.e(TAG, "Context not found for ID " + id);
-        return null;
+        App entry = mAppsById.get(id);
+        if (entry == null) Log.e(TAG, "Context not found for ID " + id);
+        return entry;
     }
 
     /**
      * Get an application context by UUID.
      */
     App getByUuid(UUID uuid) {
-        Iterator<App> i = mApps.iterator();
-        while(i.hasNext()) {
-            App entry = i.next();
-            if (entry.uuid.equals(uuid)) return entry;
-        }
-        Log.e(TAG, "Context not found for UUID " + uuid);
-        return null;
+        App entry = mAppsByUuid.get(uuid);
+        if (entry == null) Log.e(TAG, "Context not found for UUID " + uuid);
+        return entry;
     }
 
     /**
@@ -234,9 +228,7 @@ import java.util.UUID;
      */
     Set<String> getConnectedDevices() {
         Set<String> addresses = new HashSet<String>();
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
+        for (Connection connection : mConnections.values()) {
             addresses.add(connection.address);
         }
         return addresses;
@@ -246,14 +238,9 @@ import java.util.UUID;
      * Get an application context by a connection ID.
      */
     App getByConnId(int connId) {
-        Iterator<Connection> ii = mConnections.iterator();
-        while(ii.hasNext()) {
-            Connection connection = ii.next();
-            if (connection.connId == connId){
-                return getById(connection.appId);
-            }
-        }
-        return null;
+        Connection connection = mConnections.get(connId);
+        if (connection == null) return null;
+        return getById(connection.appId);
     }
 
     /**
@@ -263,63 +250,43 @@ import java.util.UUID;
         App entry = getById(id);
         if (entry == null) return null;
 
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.address.equals(address) && connection.appId == id)
-                return connection.connId;
-        }
-        return null;
+        Connection connection = entry.connections.get(address);
+        return connection == null ? null : connection.connId;
     }
 
     /**
      * Returns the device address for a given connection ID.
      */
     String addressByConnId(int connId) {
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.connId == connId) return connection.address;
-        }
-        return null;
+        Connection connection = mConnections.get(connId);
+        return connection == null ? null : connection.address;
     }
 
     List<Connection> getConnectionByApp(int appId) {
-        List<Connection> currentConnections = new ArrayList<Connection>();
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.appId == appId)
-                currentConnections.add(connection);
-        }
-        return currentConnections;
+        App entry = mAppsById.get(appId);
+        if (entry == null) return new ArrayList<Connection>();
+        return new ArrayList<Connection>(entry.connections.values());
     }
 
     /**
      * Erases all application context entries.
      */
-    void clear() {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while(i.hasNext()) {
-                App entry = i.next();
-                entry.unlinkToDeath();
-                i.remove();
-            }
-        }
-
-        synchronized (mConnections) {
-            mConnections.clear();
+    synchronized void clear() {
+        for (App entry : mAppsByUuid.values()) {
+            entry.unlinkToDeath();
         }
+        mAppsByUuid.clear();
+        mAppsById.clear();
+        mConnections.clear();
     }
 
     /**
      * Logs debug information.
      */
     void dump(StringBuilder sb) {
-        sb.append("  Entries: " + mApps.size() + "\n");
+        sb.append("  Entries: " + mAppsByUuid.size() + "\n");
 
-        Iterator<App> i = mApps.iterator();
+        Iterator<App> i = mAppsByUuid.values().iterator();
         while(i.hasNext()) {
             App entry = i.next();
             List<Connection> connections = getConnectionByApp(entry.id);
@@ -332,6 +299,7 @@ import java.util.UUID;
             while(ii.hasNext()) {
                 Connection connection = ii.next();
                 sb.append("    " + connection.connId + ": " + connection.address + "\n");
+                connection.congestionQueue.dump(sb);
             }
         }
     }
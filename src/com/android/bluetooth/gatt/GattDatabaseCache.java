@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent cache of the GATT databases discovered on bonded remote devices.
+ *
+ * A database is recorded as the sequence of attributes in the order the
+ * discovery reported them, so it can be replayed to apps in the same order.
+ * Each database is keyed by the remote address. The primary service list is
+ * compared against the services found on reconnection before the cached
+ * characteristics and descriptors are used, and the file is checked against
+ * a hash of all the attributes, including their instance IDs.
+ *
+ * Only databases without a Service Changed characteristic are cached, as the
+ * peer promises those never change while bonded. The cached databases are
+ * loaded once, and written and deleted, on a background thread.
+ *
+ * @hide
+ */
+/* package */class GattDatabaseCache {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "GattDatabaseCache";
+
+    static final int TYPE_SERVICE = 0;
+    static final int TYPE_CHARACTERISTIC = 1;
+    static final int TYPE_INCLUDED_SERVICE = 2;
+    static final int TYPE_DESCRIPTOR = 3;
+
+    private static final int FORMAT_VERSION = 2;
+    // Upper bound on the attributes of one database, guards against corrupted files.
+    private static final int MAX_ATTRIBUTES = 4096;
+
+    /**
+     * One discovered attribute. Depending on the type, {@code instId} and
+     * {@code uuid} hold the descriptor or included service, and {@code charProp}
+     * the characteristic properties or included service type.
+     */
+    static class Attribute {
+        int type;
+        int srvcType;
+        int srvcInstId;
+        long srvcUuidLsb;
+        long srvcUuidMsb;
+        int charInstId;
+        long charUuidLsb;
+        long charUuidMsb;
+        int charProp;
+        int instId;
+        long uuidLsb;
+        long uuidMsb;
+    }
+
+    /**
+     * Attributes of one remote device.
+     */
+    static class Database {
+        final List<Attribute> attributes = new ArrayList<Attribute>();
+
+        Attribute add(int type) {
+            Attribute attribute = new Attribute();
+            attribute.type = type;
+            attributes.add(attribute);
+            return attribute;
+        }
+
+        boolean hasCharacteristic(long uuidLsb, long uuidMsb) {
+            for (Attribute attribute : attributes) {
+                if (attribute.type == TYPE_CHARACTERISTIC && attribute.charUuidLsb == uuidLsb
+                        && attribute.charUuidMsb == uuidMsb) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Hash of the primary service list, compared against the services discovered.
+         */
+        long getServiceHash() {
+            long hash = 17;
+            for (Attribute attribute : attributes) {
+                if (attribute.type != TYPE_SERVICE) continue;
+                hash = 31 * hash + attribute.srvcType;
+                hash = 31 * hash + attribute.srvcInstId;
+                hash = 31 * hash + attribute.srvcUuidMsb;
+                hash = 31 * hash + attribute.srvcUuidLsb;
+            }
+            return hash;
+        }
+
+        /**
+         * Hash of all the attributes, including the characteristic and descriptor instance IDs.
+         */
+        long getHash() {
+            long hash = 17;
+            for (Attribute attribute : attributes) {
+                hash = 31 * hash + attribute.type;
+                hash = 31 * hash + attribute.srvcType;
+                hash = 31 * hash + attribute.srvcInstId;
+                hash = 31 * hash + attribute.srvcUuidMsb;
+                hash = 31 * hash + attribute.srvcUuidLsb;
+                hash = 31 * hash + attribute.charInstId;
+                hash = 31 * hash + attribute.charUuidMsb;
+                hash = 31 * hash + attribute.charUuidLsb;
+                hash = 31 * hash + attribute.charProp;
+                hash = 31 * hash + attribute.instId;
+                hash = 31 * hash + attribute.uuidMsb;
+                hash = 31 * hash + attribute.uuidLsb;
+            }
+            return hash;
+        }
+    }
+
+    private final File mDirectory;
+    private final Map<String, Database> mDatabases = new HashMap<String, Database>();
+    // Reads, writes and deletes the files, in the order they are requested.
+    private final Handler mHandler;
+    // Devices discovered or invalidated before the files were loaded, whose file is stale.
+    private final Set<String> mChangedWhileLoading = new HashSet<String>();
+    private boolean mLoaded;
+
+    GattDatabaseCache(File directory) {
+        mDirectory = directory;
+        HandlerThread thread = new HandlerThread("GattDatabaseCache",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mHandler.post(new Runnable() {
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Returns the cached database of a device, or null if there is none or the cache is
+     * still loading.
+     */
+    synchronized Database get(String address) {
+        return mDatabases.get(address);
+    }
+
+    synchronized void put(String address, final Database database) {
+        mDatabases.put(address, database);
+        if (!mLoaded) mChangedWhileLoading.add(address);
+        final File file = getFile(address);
+        mHandler.post(new Runnable() {
+            public void run() {
+                write(file, database);
+            }
+        });
+    }
+
+    synchronized void invalidate(String address) {
+        if (DBG) Log.d(TAG, "invalidate() - address=" + address);
+        mDatabases.remove(address);
+        if (!mLoaded) mChangedWhileLoading.add(address);
+        final File file = getFile(address);
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (file.exists() && !file.delete()) {
+                    Log.e(TAG, "Unable to delete " + file);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop the databases held in memory and stop the background thread once the pending
+     * writes are done.
+     */
+    synchronized void close() {
+        mDatabases.clear();
+        mHandler.getLooper().quitSafely();
+    }
+
+    private void load() {
+        Map<String, Database> databases = new HashMap<String, Database>();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Database database = read(file);
+                if (database != null) {
+                    databases.put(getAddress(file.getName()), database);
+                }
+            }
+        }
+        synchronized (this) {
+            for (Map.Entry<String, Database> entry : databases.entrySet()) {
+                if (!mChangedWhileLoading.contains(entry.getKey())) {
+                    mDatabases.put(entry.getKey(), entry.getValue());
+                }
+            }
+            mChangedWhileLoading.clear();
+            mLoaded = true;
+        }
+        if (DBG) Log.d(TAG, "load() - " + databases.size() + " databases");
+    }
+
+    // Inverse of getFile(), the file name is the address without the colons.
+    private static String getAddress(String fileName) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fileName.length(); i += 2) {
+            if (i > 0) sb.append(':');
+            sb.append(fileName, i, Math.min(i + 2, fileName.length()));
+        }
+        return sb.toString();
+    }
+
+    private File getFile(String address) {
+        return new File(mDirectory, address.replace(":", ""));
+    }
+
+    private static Database read(File file) {
+        if (!file.exists()) return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION) {
+                file.delete();
+                return null;
+            }
+            long hash = in.readLong();
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ATTRIBUTES) return null;
+            Database database = new Database();
+            for (int i = 0; i < count; i++) {
+                Attribute attribute = database.add(in.readByte());
+                attribute.srvcType = in.readByte();
+                attribute.srvcInstId = in.readUnsignedByte();
+                attribute.srvcUuidLsb = in.readLong();
+                attribute.srvcUuidMsb = in.readLong();
+                if (attribute.type == TYPE_SERVICE) continue;
+                attribute.charInstId = in.readUnsignedByte();
+                attribute.charUuidLsb = in.readLong();
+                attribute.charUuidMsb = in.readLong();
+                attribute.charProp = in.readUnsignedByte();
+                if (attribute.type == TYPE_CHARACTERISTIC) continue;
+                attribute.instId = in.readUnsignedByte();
+                attribute.uuidLsb = in.readLong();
+                attribute.uuidMsb = in.readLong();
+            }
+            if (database.getHash() != hash) {
+                Log.e(TAG, "Corrupted GATT cache " + file);
+                return null;
+            }
+            return database;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file + ": " + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to close " + file + ": " + e);
+                }
+            }
+        }
+    }
+
+    private static void write(File file, Database database) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(database.getHash());
+            out.writeInt(database.attributes.size());
+            for (Attribute attribute : database.attributes) {
+                out.writeByte(attribute.type);
+                out.writeByte(attribute.srvcType);
+                out.writeByte(attribute.srvcInstId);
+                out.writeLong(attribute.srvcUuidLsb);
+                out.writeLong(attribute.srvcUuidMsb);
+                if (attribute.type == TYPE_SERVICE) continue;
+                out.writeByte(attribute.charInstId);
+                out.writeLong(attribute.charUuidLsb);
+                out.writeLong(attribute.charUuidMsb);
+                out.writeByte(attribute.charProp);
+                if (attribute.type == TYPE_CHARACTERISTIC) continue;
+                out.writeByte(attribute.instId);
+                out.writeLong(attribute.uuidLsb);
+                out.writeLong(attribute.uuidMsb);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write " + file + ": " + e);
+            file.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to close " + file + ": " + e);
+                }
+            }
+        }
+    }
+}
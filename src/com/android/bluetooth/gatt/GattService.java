@@ -32,22 +32,28 @@ import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.IBinder;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 
+import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.util.NumberUtils;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -72,12 +78,17 @@ public class GattService extends ProfileService {
     private static final int MAC_ADDRESS_LENGTH = 6;
     // Batch scan related constants.
     private static final int TRUNCATED_RESULT_SIZE = 11;
+    // Address, address type, tx power, rssi, timestamp and advertise packet length.
+    private static final int FULL_RESULT_HEADER_SIZE = 12;
     private static final int TIME_STAMP_LENGTH = 2;
 
     // onFoundLost related constants
     private static final int ADVT_STATE_ONFOUND = 0;
     private static final int ADVT_STATE_ONLOST = 1;
 
+    private static final UUID SERVICE_CHANGED_UUID =
+            UUID.fromString("00002A05-0000-1000-8000-00805F9B34FB");
+
     private static final UUID[] HID_UUIDS = {
         UUID.fromString("00002A4A-0000-1000-8000-00805F9B34FB"),
         UUID.fromString("00002A4B-0000-1000-8000-00805F9B34FB"),
@@ -90,6 +101,32 @@ public class GattService extends ProfileService {
      */
     SearchQueue mSearchQueue = new SearchQueue();
 
+    /**
+     * GATT databases of bonded devices, and the databases being discovered keyed by connId.
+     */
+    private GattDatabaseCache mDatabaseCache;
+
+    // A new or removed bond makes the cached database of the device unusable.
+    private final BroadcastReceiver mBondStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                    BluetoothDevice.ERROR);
+            if (device != null && state != BluetoothDevice.BOND_BONDING) {
+                mDatabaseCache.invalidate(device.getAddress());
+            }
+        }
+    };
+    private boolean mBondStateReceiverRegistered;
+    private final SparseArray<GattDatabaseCache.Database> mDiscoveries =
+            new SparseArray<GattDatabaseCache.Database>();
+
+    /**
+     * UUIDs of the characteristics that notify, by connection.
+     */
+    private final CharacteristicUuidCache mNotifyUuidCache = new CharacteristicUuidCache();
+
     /**
      * List of our registered clients.
      */
@@ -110,7 +147,14 @@ public class GattService extends ProfileService {
     private List<UUID> mAdvertisingServiceUuids = new ArrayList<UUID>();
 
     private int mMaxScanFilters;
-    private Map<ScanClient, ScanResult> mOnFoundResults = new HashMap<ScanClient, ScanResult>();
+    private ScanSightingTracker mOnFoundResults = new ScanSightingTracker();
+
+    /**
+     * Advertisement parser and dispatch candidates, reused for every scan result.
+     * Only accessed from the stack callback thread.
+     */
+    private final AdvertiseDataParser mAdvertiseDataParser = new AdvertiseDataParser();
+    private final List<ScanClient> mScanCandidates = new ArrayList<ScanClient>();
 
     /**
      * Pending service declaration queue
@@ -190,6 +234,15 @@ public class GattService extends ProfileService {
     protected boolean start() {
         if (DBG) Log.d(TAG, "start()");
         initializeNative();
+        int congestionQueueSize = getResources().getInteger(R.integer.gatt_congestion_queue_size);
+        mClientMap.setCongestionQueueSize(congestionQueueSize);
+        mServerMap.setCongestionQueueSize(congestionQueueSize);
+        mOnFoundResults = new ScanSightingTracker(
+                getResources().getInteger(R.integer.gatt_max_sightings_per_client));
+        mDatabaseCache = new GattDatabaseCache(getDir("gatt_cache", MODE_PRIVATE));
+        registerReceiver(mBondStateReceiver,
+                new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
+        mBondStateReceiverRegistered = true;
         mAdvertiseManager = new AdvertiseManager(this, AdapterService.getAdapterService());
         mAdvertiseManager.start();
 
@@ -208,6 +261,18 @@ public class GattService extends ProfileService {
         mServiceDeclarations.clear();
         mActiveServiceDeclarations.clear();
         mReliableQueue.clear();
+        mOnFoundResults.clear();
+        synchronized (mDiscoveries) {
+            mDiscoveries.clear();
+        }
+        mNotifyUuidCache.clear();
+        if (mBondStateReceiverRegistered) {
+            unregisterReceiver(mBondStateReceiver);
+            mBondStateReceiverRegistered = false;
+        }
+        if (mDatabaseCache != null) {
+            mDatabaseCache.close();
+        }
         if (mAdvertiseManager != null) {
             mAdvertiseManager.cleanup();
             mAdvertiseManager = null;
@@ -589,50 +654,69 @@ public class GattService extends ProfileService {
     void onScanResult(String address, int rssi, byte[] adv_data) {
         if (VDBG) Log.d(TAG, "onScanResult() - address=" + address
                     + ", rssi=" + rssi);
-        List<UUID> remoteUuids = parseUuids(adv_data);
-        for (ScanClient client : mScanManager.getRegularScanQueue()) {
+        ScanDispatchIndex index = mScanManager.getRegularScanIndex();
+        if (index.size() == 0) return;
+
+        AdvertiseDataParser parser = mAdvertiseDataParser;
+        parser.parse(adv_data);
+        List<ScanClient> candidates = mScanCandidates;
+        candidates.clear();
+        index.getCandidates(address, parser, candidates);
+        if (candidates.isEmpty()) return;
+
+        // The scan record is only built once a client needs it, and is then shared.
+        ScanResult result = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            ScanClient client = candidates.get(i);
             if (client.uuids.length > 0) {
-                int matches = 0;
+                boolean matches = true;
                 for (UUID search : client.uuids) {
-                    for (UUID remote: remoteUuids) {
-                        if (remote.equals(search)) {
-                            ++matches;
-                            break; // Only count 1st match in case of duplicates
-                        }
+                    if (!parser.hasServiceUuid(search)) {
+                        matches = false;
+                        break;
                     }
                 }
 
-                if (matches < client.uuids.length) continue;
+                if (!matches) continue;
             }
 
             if (!client.isServer) {
                 ClientMap.App app = mClientMap.getById(client.clientIf);
                 if (app != null) {
-                    BluetoothDevice device = BluetoothAdapter.getDefaultAdapter()
-                            .getRemoteDevice(address);
-                    ScanResult result = new ScanResult(device, ScanRecord.parseFromBytes(adv_data),
-                            rssi, SystemClock.elapsedRealtimeNanos());
+                    if (result == null) {
+                        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter()
+                                .getRemoteDevice(address);
+                        result = new ScanResult(device, ScanRecord.parseFromBytes(adv_data),
+                                rssi, SystemClock.elapsedRealtimeNanos());
+                    }
                     if (matchesFilters(client, result)) {
                         try {
                             ScanSettings settings = client.settings;
                             // framework detects the first match, hw signal is
-                            // used to detect the onlost
-                            // ToDo: make scanClient+result, 1 to many when hw
-                            // support is available
+                            // used to detect the onlost. Match lost clients are
+                            // tracked too so the lost event carries the last result.
                             if ((settings.getCallbackType() &
-                                    ScanSettings.CALLBACK_TYPE_FIRST_MATCH) != 0) {
-                                synchronized (mOnFoundResults) {
-                                    mOnFoundResults.put(client, result);
+                                    (ScanSettings.CALLBACK_TYPE_FIRST_MATCH |
+                                    ScanSettings.CALLBACK_TYPE_MATCH_LOST)) != 0) {
+                                boolean found = mOnFoundResults.onSighting(client.clientIf,
+                                        result);
+                                if (found && (settings.getCallbackType() &
+                                        ScanSettings.CALLBACK_TYPE_FIRST_MATCH) != 0) {
+                                    app.callback.onFoundOrLost(true, result);
                                 }
-                                app.callback.onFoundOrLost(true, result);
                             }
                             if ((settings.getCallbackType() &
                                     ScanSettings.CALLBACK_TYPE_ALL_MATCHES) != 0) {
-                                app.callback.onScanResult(result);
+                                if (client.softwareBatch) {
+                                    mScanManager.addSoftwareBatchResult(client, result);
+                                } else {
+                                    app.callback.onScanResult(result);
+                                }
                             }
                         } catch (RemoteException e) {
                             Log.e(TAG, "Exception: " + e);
                             mClientMap.remove(client.clientIf);
+                            mOnFoundResults.removeClient(client.clientIf);
                             mScanManager.stopScan(client);
                         }
                     }
@@ -672,7 +756,7 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByUuid(uuid);
         if (app != null) {
             if (status == 0) {
-                app.id = clientIf;
+                mClientMap.setId(app, clientIf);
                 app.linkToDeath(new ClientDeathRecipient(clientIf));
             } else {
                 mClientMap.remove(uuid);
@@ -701,6 +785,10 @@ public class GattService extends ProfileService {
 
         mClientMap.removeConnection(clientIf, connId);
         mSearchQueue.removeConnId(connId);
+        synchronized (mDiscoveries) {
+            mDiscoveries.remove(connId);
+        }
+        mNotifyUuidCache.removeConnId(connId);
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf, false, address);
@@ -709,6 +797,8 @@ public class GattService extends ProfileService {
 
     void onSearchCompleted(int connId, int status) throws RemoteException {
         if (DBG) Log.d(TAG, "onSearchCompleted() - connId=" + connId+ ", status=" + status);
+        // Services are unchanged, serve the rest of the database from the cache.
+        if (status == 0 && replayCachedDatabase(connId)) return;
         // We got all services, now let's explore characteristics...
         continueSearch(connId, status);
     }
@@ -722,6 +812,8 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "onSearchResult() - address=" + address + ", uuid=" + uuid);
 
         mSearchQueue.add(connId, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb);
+        recordAttribute(connId, GattDatabaseCache.TYPE_SERVICE, srvcType, srvcInstId,
+                srvcUuidLsb, srvcUuidMsb, 0, 0, 0, 0, 0, 0, 0);
 
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
@@ -746,6 +838,9 @@ public class GattService extends ProfileService {
             mSearchQueue.add(connId, srvcType,
                             srvcInstId, srvcUuidLsb, srvcUuidMsb,
                             charInstId, charUuidLsb, charUuidMsb);
+            recordAttribute(connId, GattDatabaseCache.TYPE_CHARACTERISTIC, srvcType,
+                    srvcInstId, srvcUuidLsb, srvcUuidMsb, charInstId, charUuidLsb, charUuidMsb,
+                    charProp, 0, 0, 0);
 
             ClientMap.App app = mClientMap.getByConnId(connId);
             if (app != null) {
@@ -780,6 +875,9 @@ public class GattService extends ProfileService {
             + ", status=" + status + ", descUuid=" + descUuid);
 
         if (status == 0) {
+            recordAttribute(connId, GattDatabaseCache.TYPE_DESCRIPTOR, srvcType, srvcInstId,
+                    srvcUuidLsb, srvcUuidMsb, charInstId, charUuidLsb, charUuidMsb, 0,
+                    descrInstId, descrUuidLsb, descrUuidMsb);
             ClientMap.App app = mClientMap.getByConnId(connId);
             if (app != null) {
                 app.callback.onGetDescriptor(address, srvcType,
@@ -812,6 +910,9 @@ public class GattService extends ProfileService {
             + ", inclUuid=" + inclSrvcUuid);
 
         if (status == 0) {
+            recordAttribute(connId, GattDatabaseCache.TYPE_INCLUDED_SERVICE, srvcType,
+                    srvcInstId, srvcUuidLsb, srvcUuidMsb, 0, 0, 0, inclSrvcType,
+                    inclSrvcInstId, inclSrvcUuidLsb, inclSrvcUuidMsb);
             ClientMap.App app = mClientMap.getByConnId(connId);
             if (app != null) {
                 app.callback.onGetIncludedService(address,
@@ -845,14 +946,24 @@ public class GattService extends ProfileService {
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
             int charInstId, long charUuidLsb, long charUuidMsb,
             boolean isNotify, byte[] data) throws RemoteException {
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
+        // Notifications come at a high rate, reuse the UUIDs of the characteristic.
+        CharacteristicUuidCache.Entry uuids = mNotifyUuidCache.get(connId, srvcType,
+                srvcInstId, srvcUuidLsb, srvcUuidMsb, charInstId, charUuidLsb, charUuidMsb);
+        if (uuids == null) {
+            uuids = new CharacteristicUuidCache.Entry(srvcUuidLsb, srvcUuidMsb,
+                    charUuidLsb, charUuidMsb, isHidUuid(new UUID(charUuidMsb, charUuidLsb)));
+            mNotifyUuidCache.put(connId, srvcType, srvcInstId, charInstId, uuids);
+        }
 
         if (VDBG) Log.d(TAG, "onNotify() - address=" + address
-            + ", charUuid=" + charUuid + ", length=" + data.length);
+            + ", charUuid=" + uuids.charUuid + ", length=" + data.length);
 
+        if (charUuidMsb == SERVICE_CHANGED_UUID.getMostSignificantBits()
+                && charUuidLsb == SERVICE_CHANGED_UUID.getLeastSignificantBits()) {
+            mDatabaseCache.invalidate(address);
+        }
 
-        if (isHidUuid(charUuid) &&
+        if (uuids.isPrivileged &&
                (0 != checkCallingOrSelfPermission(BLUETOOTH_PRIVILEGED))) {
             return;
         }
@@ -860,8 +971,8 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onNotify(address, srvcType,
-                        srvcInstId, new ParcelUuid(srvcUuid),
-                        charInstId, new ParcelUuid(charUuid),
+                        srvcInstId, uuids.srvcUuid,
+                        charInstId, uuids.charUuid,
                         data);
         }
     }
@@ -901,7 +1012,8 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app == null) return;
 
-        if (!app.isCongested) {
+        CongestionQueue queue = mClientMap.getCongestionQueue(connId);
+        if (queue == null || !queue.isCongested()) {
             app.callback.onCharacteristicWrite(address, status, srvcType,
                     srvcInstId, new ParcelUuid(srvcUuid),
                     charInstId, new ParcelUuid(charUuid));
@@ -911,7 +1023,13 @@ public class GattService extends ProfileService {
             }
             CallbackInfo callbackInfo = new CallbackInfo(address, status, srvcType,
                     srvcInstId, srvcUuid, charInstId, charUuid);
-            app.queueCallback(callbackInfo);
+            // Only the oldest callback is released early if the queue is full.
+            CallbackInfo evicted = queue.offer(callbackInfo);
+            if (evicted != null) {
+                app.callback.onCharacteristicWrite(evicted.address, evicted.status,
+                        evicted.srvcType, evicted.srvcInstId, new ParcelUuid(evicted.srvcUuid),
+                        evicted.charInstId, new ParcelUuid(evicted.charUuid));
+            }
         }
     }
 
@@ -1033,128 +1151,140 @@ public class GattService extends ProfileService {
                     + ", reportType=" + reportType + ", numRecords=" + numRecords);
         }
         mScanManager.callbackDone(clientIf, status);
-        Set<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
+        if (VDBG) Log.d(TAG, "batch record " + Arrays.toString(recordData));
         if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
             // We only support single client for truncated mode.
             ClientMap.App app = mClientMap.getById(clientIf);
             if (app == null) return;
-            app.callback.onBatchScanResults(new ArrayList<ScanResult>(results));
+            app.callback.onBatchScanResults(parseTruncatedResults(numRecords, recordData));
         } else {
-            for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
-                // Deliver results for each client.
-                deliverBatchScan(client, results);
-            }
+            deliverFullBatchScan(numRecords, recordData);
         }
     }
 
-    // Check and deliver scan results for different scan clients.
-    private void deliverBatchScan(ScanClient client, Set<ScanResult> allResults) throws
-            RemoteException {
+    // Callback from ScanManager when a batch of a software batch scan client is due.
+    void onSoftwareBatchScanResults(ScanClient client, List<ScanResult> results) {
+        if (DBG) Log.d(TAG, "onSoftwareBatchScanResults() - clientIf=" + client.clientIf
+                + ", results=" + results.size());
         ClientMap.App app = mClientMap.getById(client.clientIf);
         if (app == null) return;
-        if (client.filters == null || client.filters.isEmpty()) {
-            app.callback.onBatchScanResults(new ArrayList<ScanResult>(allResults));
+        try {
+            app.callback.onBatchScanResults(results);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Exception: " + e);
+            mClientMap.remove(client.clientIf);
+            mScanManager.stopScan(client);
         }
-        // Reconstruct the scan results.
-        List<ScanResult> results = new ArrayList<ScanResult>();
-        for (ScanResult scanResult : allResults) {
-            if (matchesFilters(client, scanResult)) {
-                results.add(scanResult);
-            }
-        }
-        app.callback.onBatchScanResults(results);
     }
 
-    private Set<ScanResult> parseBatchScanResults(int numRecords, int reportType,
-            byte[] batchRecord) {
-        if (numRecords == 0) {
-            return Collections.emptySet();
+    // Decode full batch results record by record and deliver each result to the clients whose
+    // filters match it.
+    private void deliverFullBatchScan(int numRecords, byte[] batchRecord)
+            throws RemoteException {
+        List<ScanClient> clients = new ArrayList<ScanClient>();
+        List<ClientMap.App> apps = new ArrayList<ClientMap.App>();
+        List<List<ScanResult>> clientResults = new ArrayList<List<ScanResult>>();
+        for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
+            ClientMap.App app = mClientMap.getById(client.clientIf);
+            if (app == null) continue;
+            clients.add(client);
+            apps.add(app);
+            clientResults.add(new ArrayList<ScanResult>(numRecords));
+        }
+        if (clients.isEmpty()) return;
+
+        if (numRecords > 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(batchRecord).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] address = new byte[MAC_ADDRESS_LENGTH];
+            long now = SystemClock.elapsedRealtimeNanos();
+            ScanResult result;
+            while ((result = parseFullResult(buffer, address, now)) != null) {
+                for (int i = 0; i < clients.size(); i++) {
+                    if (matchesFilters(clients.get(i), result)) {
+                        clientResults.get(i).add(result);
+                    }
+                }
+            }
         }
-        if (DBG) Log.d(TAG, "current time is " + SystemClock.elapsedRealtimeNanos());
-        if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
-            return parseTruncatedResults(numRecords, batchRecord);
-        } else {
-            return parseFullResults(numRecords, batchRecord);
+
+        for (int i = 0; i < apps.size(); i++) {
+            apps.get(i).callback.onBatchScanResults(clientResults.get(i));
         }
     }
 
-    private Set<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord) {
-        if (DBG) Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
+    private List<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord) {
+        List<ScanResult> results = new ArrayList<ScanResult>(numRecords);
+        if (numRecords == 0) return results;
+        ByteBuffer buffer = ByteBuffer.wrap(batchRecord).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] address = new byte[MAC_ADDRESS_LENGTH];
+        ScanRecord emptyRecord = ScanRecord.parseFromBytes(new byte[0]);
         long now = SystemClock.elapsedRealtimeNanos();
         for (int i = 0; i < numRecords; ++i) {
-            byte[] record = extractBytes(batchRecord, i * TRUNCATED_RESULT_SIZE,
-                    TRUNCATED_RESULT_SIZE);
-            byte[] address = extractBytes(record, 0, 6);
-            reverse(address);
+            if (buffer.remaining() < TRUNCATED_RESULT_SIZE) {
+                Log.e(TAG, "truncated batch record too short, records=" + numRecords);
+                break;
+            }
+            int start = buffer.position();
+            readAddress(buffer, address);
             BluetoothDevice device = mAdapter.getRemoteDevice(address);
-            int rssi = record[8];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(record, 9, 2));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(new byte[0]),
-                    rssi, timestampNanos));
+            // Skip address type and tx power level.
+            buffer.position(start + 8);
+            int rssi = buffer.get();
+            long timestampNanos = now - parseTimestampNanos(buffer.getShort() & 0xFFFF);
+            results.add(new ScanResult(device, emptyRecord, rssi, timestampNanos));
         }
         return results;
     }
 
     @VisibleForTesting
     long parseTimestampNanos(byte[] data) {
-        long timestampUnit = NumberUtils.littleEndianByteArrayToInt(data);
-        // Timestamp is in every 50 ms.
-        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
+        return parseTimestampNanos(NumberUtils.littleEndianByteArrayToInt(data));
     }
 
-    private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
-        Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        int position = 0;
-        long now = SystemClock.elapsedRealtimeNanos();
-        while (position < batchRecord.length) {
-            byte[] address = extractBytes(batchRecord, position, 6);
-            // TODO: remove temp hack.
-            reverse(address);
-            BluetoothDevice device = mAdapter.getRemoteDevice(address);
-            position += 6;
-            // Skip address type.
-            position++;
-            // Skip tx power level.
-            position++;
-            int rssi = batchRecord[position++];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(batchRecord, position, 2));
-            position += 2;
-
-            // Combine advertise packet and scan response packet.
-            int advertisePacketLen = batchRecord[position++];
-            byte[] advertiseBytes = extractBytes(batchRecord, position, advertisePacketLen);
-            position += advertisePacketLen;
-            int scanResponsePacketLen = batchRecord[position++];
-            byte[] scanResponseBytes = extractBytes(batchRecord, position, scanResponsePacketLen);
-            position += scanResponsePacketLen;
-            byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
-            System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
-            System.arraycopy(scanResponseBytes, 0, scanRecord,
-                    advertisePacketLen, scanResponsePacketLen);
-            Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord),
-                    rssi, timestampNanos));
+    private long parseTimestampNanos(int timestampUnit) {
+        // Timestamp is in every 50 ms.
+        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50L);
+    }
+
+    // Parse the full result at the buffer position and advance past it. Returns null at the end
+    // of the batch or if the record is malformed.
+    private ScanResult parseFullResult(ByteBuffer buffer, byte[] address, long now) {
+        if (buffer.remaining() < FULL_RESULT_HEADER_SIZE) return null;
+        readAddress(buffer, address);
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        // Skip address type.
+        buffer.get();
+        // Skip tx power level.
+        buffer.get();
+        int rssi = buffer.get();
+        long timestampNanos = now - parseTimestampNanos(buffer.getShort() & 0xFFFF);
+
+        // Combine advertise packet and scan response packet.
+        int advertisePacketLen = buffer.get() & 0xFF;
+        if (buffer.remaining() < advertisePacketLen + 1) {
+            Log.e(TAG, "full batch record too short for advertise packet");
+            return null;
         }
-        return results;
-    }
-
-    // Reverse byte array.
-    private void reverse(byte[] address) {
-        int len = address.length;
-        for (int i = 0; i < len / 2; ++i) {
-            byte b = address[i];
-            address[i] = address[len - 1 - i];
-            address[len - 1 - i] = b;
+        int advertiseOffset = buffer.position();
+        buffer.position(advertiseOffset + advertisePacketLen);
+        int scanResponsePacketLen = buffer.get() & 0xFF;
+        if (buffer.remaining() < scanResponsePacketLen) {
+            Log.e(TAG, "full batch record too short for scan response packet");
+            return null;
         }
+        byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
+        System.arraycopy(buffer.array(), advertiseOffset, scanRecord, 0, advertisePacketLen);
+        buffer.get(scanRecord, advertisePacketLen, scanResponsePacketLen);
+        if (VDBG) Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
+        return new ScanResult(device, ScanRecord.parseFromBytes(scanRecord),
+                rssi, timestampNanos);
     }
 
-    // Helper method to extract bytes from byte array.
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
+    // Read an address which is stored in reverse byte order.
+    private static void readAddress(ByteBuffer buffer, byte[] address) {
+        for (int i = address.length - 1; i >= 0; --i) {
+            address[i] = buffer.get();
+        }
     }
 
     void onBatchScanThresholdCrossed(int clientIf) {
@@ -1181,20 +1311,21 @@ public class GattService extends ProfileService {
             return;
         }
 
+        // Forget the device even if the client is not interested in the lost event, so the
+        // next sighting is reported as found again.
+        ScanResult result = mOnFoundResults.onLost(clientIf, address);
+        if (result == null) {
+            return;
+        }
+
         for (ScanClient client : mScanManager.getRegularScanQueue()) {
             if (client.clientIf == clientIf) {
                 ScanSettings settings = client.settings;
                 if ((settings.getCallbackType() &
                             ScanSettings.CALLBACK_TYPE_MATCH_LOST) != 0) {
-
-                    while (!mOnFoundResults.isEmpty()) {
-                        ScanResult result = mOnFoundResults.get(client);
-                        app.callback.onFoundOrLost(false, result);
-                        synchronized (mOnFoundResults) {
-                            mOnFoundResults.remove(client);
-                        }
-                    }
+                    app.callback.onFoundOrLost(false, result);
                 }
+                break;
             }
         }
     }
@@ -1258,6 +1389,11 @@ public class GattService extends ProfileService {
     void onAdvertiseInstanceDisabled(int status, int clientIf) throws RemoteException {
         if (DBG) Log.d(TAG, "onAdvertiseInstanceDisabled() - clientIf=" + clientIf
             + ", status=" + status);
+        AdvertiseManager advertiseManager = mAdvertiseManager;
+        if (advertiseManager != null && advertiseManager.consumeFailedStartDisable(clientIf)) {
+            // The app was already told that the start failed.
+            return;
+        }
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             Log.d(TAG, "Client app is not null!");
@@ -1276,11 +1412,12 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "onClientCongestion() - connId=" + connId + ", congested=" + congested);
 
         ClientMap.App app = mClientMap.getByConnId(connId);
+        CongestionQueue queue = mClientMap.getCongestionQueue(connId);
 
-        if (app != null) {
-            app.isCongested = congested;
-            while(!app.isCongested) {
-                CallbackInfo callbackInfo = app.popQueuedCallback();
+        if (app != null && queue != null) {
+            queue.setCongested(congested);
+            while(!queue.isCongested()) {
+                CallbackInfo callbackInfo = queue.poll();
                 if (callbackInfo == null)  return;
                 app.callback.onCharacteristicWrite(callbackInfo.address,
                         callbackInfo.status, callbackInfo.srvcType,
@@ -1360,6 +1497,7 @@ public class GattService extends ProfileService {
         int scanQueueSize = mScanManager.getBatchScanQueue().size() +
                 mScanManager.getRegularScanQueue().size();
         if (DBG) Log.d(TAG, "stopScan() - queue size =" + scanQueueSize);
+        mOnFoundResults.removeClient(client.clientIf);
         mScanManager.stopScan(client);
     }
 
@@ -1407,6 +1545,11 @@ public class GattService extends ProfileService {
                 scanResponse));
     }
 
+    void startMultiAdvertising(List<AdvertiseClient> clients) {
+        enforceAdminPermission();
+        mAdvertiseManager.startAdvertising(clients);
+    }
+
     void stopMultiAdvertising(AdvertiseClient client) {
         enforceAdminPermission();
         mAdvertiseManager.stopAdvertising(client);
@@ -1416,7 +1559,7 @@ public class GattService extends ProfileService {
     synchronized List<ParcelUuid> getRegisteredServiceUuids() {
         Utils.enforceAdminPermission(this);
         List<ParcelUuid> serviceUuids = new ArrayList<ParcelUuid>();
-        for (HandleMap.Entry entry : mHandleMap.mEntries) {
+        for (HandleMap.Entry entry : mHandleMap.getEntries()) {
             serviceUuids.add(new ParcelUuid(entry.uuid));
         }
         return serviceUuids;
@@ -1436,6 +1579,7 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "refreshDevice() - address=" + address);
+        mDatabaseCache.invalidate(address);
         gattClientRefreshNative(clientIf, address);
     }
 
@@ -1445,9 +1589,17 @@ public class GattService extends ProfileService {
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (DBG) Log.d(TAG, "discoverServices() - address=" + address + ", connId=" + connId);
 
-        if (connId != null)
+        if (connId != null) {
+            // Record the discovery of bonded devices so it can be served from the cache later.
+            synchronized (mDiscoveries) {
+                if (isBonded(address)) {
+                    mDiscoveries.put(connId, new GattDatabaseCache.Database());
+                } else {
+                    mDiscoveries.remove(connId);
+                }
+            }
             gattClientSearchServiceNative(connId, true, 0, 0);
-        else
+        } else
             Log.e(TAG, "discoverServices() - No connection for " + address + "...");
     }
 
@@ -1642,7 +1794,7 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onServerRegistered() - UUID=" + uuid + ", serverIf=" + serverIf);
         ServerMap.App app = mServerMap.getByUuid(uuid);
         if (app != null) {
-            app.id = serverIf;
+            mServerMap.setId(app, serverIf);
             app.linkToDeath(new ServerDeathRecipient(serverIf));
             app.callback.onServerRegistered(status, serverIf);
         }
@@ -1867,13 +2019,18 @@ public class GattService extends ProfileService {
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) return;
 
-        if (!app.isCongested) {
+        CongestionQueue queue = mServerMap.getCongestionQueue(connId);
+        if (queue == null || !queue.isCongested()) {
             app.callback.onNotificationSent(address, status);
         } else {
             if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
                 status = BluetoothGatt.GATT_SUCCESS;
             }
-            app.queueCallback(new CallbackInfo(address, status));
+            // Only the oldest callback is released early if the queue is full.
+            CallbackInfo evicted = queue.offer(new CallbackInfo(address, status));
+            if (evicted != null) {
+                app.callback.onNotificationSent(evicted.address, evicted.status);
+            }
         }
     }
 
@@ -1881,11 +2038,12 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onServerCongestion() - connId=" + connId + ", congested=" + congested);
 
         ServerMap.App app = mServerMap.getByConnId(connId);
-        if (app == null) return;
+        CongestionQueue queue = mServerMap.getCongestionQueue(connId);
+        if (app == null || queue == null) return;
 
-        app.isCongested = congested;
-        while(!app.isCongested) {
-            CallbackInfo callbackInfo = app.popQueuedCallback();
+        queue.setCongested(congested);
+        while(!queue.isCongested()) {
+            CallbackInfo callbackInfo = queue.poll();
             if (callbackInfo == null) return;
             app.callback.onNotificationSent(callbackInfo.address, callbackInfo.status);
         }
@@ -2120,9 +2278,8 @@ public class GattService extends ProfileService {
     }
 
     private void continueSearch(int connId, int status) throws RemoteException {
-        if (status == 0 && !mSearchQueue.isEmpty()) {
-            SearchQueue.Entry svc = mSearchQueue.pop();
-
+        SearchQueue.Entry svc = status == 0 ? mSearchQueue.pop(connId) : null;
+        if (svc != null) {
             if (svc.charUuidLsb == 0) {
                 // Characteristic is up next
                 gattClientGetCharacteristicNative(svc.connId, svc.srvcType,
@@ -2134,11 +2291,114 @@ public class GattService extends ProfileService {
                     svc.charInstId, svc.charUuidLsb, svc.charUuidMsb, 0, 0, 0);
             }
         } else {
+            // Drop whatever is left over if the search failed.
+            mSearchQueue.removeConnId(connId);
+            String address = mClientMap.addressByConnId(connId);
+            GattDatabaseCache.Database discovery;
+            synchronized (mDiscoveries) {
+                discovery = mDiscoveries.get(connId);
+                mDiscoveries.remove(connId);
+            }
+            if (status == 0 && discovery != null && address != null) {
+                // The database of a peer with a Service Changed characteristic may change
+                // while bonded, and the stack handles the indication itself, so don't cache it.
+                if (discovery.hasCharacteristic(SERVICE_CHANGED_UUID.getLeastSignificantBits(),
+                        SERVICE_CHANGED_UUID.getMostSignificantBits())) {
+                    mDatabaseCache.invalidate(address);
+                } else {
+                    mDatabaseCache.put(address, discovery);
+                }
+            }
+
             ClientMap.App app = mClientMap.getByConnId(connId);
             if (app != null) {
-                app.callback.onSearchComplete(mClientMap.addressByConnId(connId), status);
+                app.callback.onSearchComplete(address, status);
+            }
+        }
+    }
+
+    private void recordAttribute(int connId, int type, int srvcType, int srvcInstId,
+            long srvcUuidLsb, long srvcUuidMsb, int charInstId, long charUuidLsb,
+            long charUuidMsb, int charProp, int instId, long uuidLsb, long uuidMsb) {
+        synchronized (mDiscoveries) {
+            GattDatabaseCache.Database discovery = mDiscoveries.get(connId);
+            if (discovery == null) return;
+            GattDatabaseCache.Attribute attribute = discovery.add(type);
+            attribute.srvcType = srvcType;
+            attribute.srvcInstId = srvcInstId;
+            attribute.srvcUuidLsb = srvcUuidLsb;
+            attribute.srvcUuidMsb = srvcUuidMsb;
+            attribute.charInstId = charInstId;
+            attribute.charUuidLsb = charUuidLsb;
+            attribute.charUuidMsb = charUuidMsb;
+            attribute.charProp = charProp;
+            attribute.instId = instId;
+            attribute.uuidLsb = uuidLsb;
+            attribute.uuidMsb = uuidMsb;
+        }
+    }
+
+    // Serve the characteristics, included services and descriptors from the cache if the
+    // services just discovered match the cached database. Returns true if the search is done.
+    private boolean replayCachedDatabase(int connId) throws RemoteException {
+        String address = mClientMap.addressByConnId(connId);
+        GattDatabaseCache.Database discovery;
+        synchronized (mDiscoveries) {
+            discovery = mDiscoveries.get(connId);
+        }
+        if (discovery == null || address == null) return false;
+
+        GattDatabaseCache.Database cached = mDatabaseCache.get(address);
+        if (cached == null) return false;
+        if (!isBonded(address) || cached.getServiceHash() != discovery.getServiceHash()) {
+            mDatabaseCache.invalidate(address);
+            return false;
+        }
+
+        if (DBG) Log.d(TAG, "replayCachedDatabase() - address=" + address);
+        synchronized (mDiscoveries) {
+            mDiscoveries.remove(connId);
+        }
+        mSearchQueue.removeConnId(connId);
+
+        ClientMap.App app = mClientMap.getByConnId(connId);
+        if (app == null) return true;
+        for (GattDatabaseCache.Attribute attr : cached.attributes) {
+            switch (attr.type) {
+                case GattDatabaseCache.TYPE_CHARACTERISTIC:
+                    app.callback.onGetCharacteristic(address, attr.srvcType, attr.srvcInstId,
+                            new ParcelUuid(new UUID(attr.srvcUuidMsb, attr.srvcUuidLsb)),
+                            attr.charInstId,
+                            new ParcelUuid(new UUID(attr.charUuidMsb, attr.charUuidLsb)),
+                            attr.charProp);
+                    break;
+
+                case GattDatabaseCache.TYPE_INCLUDED_SERVICE:
+                    app.callback.onGetIncludedService(address, attr.srvcType, attr.srvcInstId,
+                            new ParcelUuid(new UUID(attr.srvcUuidMsb, attr.srvcUuidLsb)),
+                            attr.charProp, attr.instId,
+                            new ParcelUuid(new UUID(attr.uuidMsb, attr.uuidLsb)));
+                    break;
+
+                case GattDatabaseCache.TYPE_DESCRIPTOR:
+                    app.callback.onGetDescriptor(address, attr.srvcType, attr.srvcInstId,
+                            new ParcelUuid(new UUID(attr.srvcUuidMsb, attr.srvcUuidLsb)),
+                            attr.charInstId,
+                            new ParcelUuid(new UUID(attr.charUuidMsb, attr.charUuidLsb)),
+                            attr.instId, new ParcelUuid(new UUID(attr.uuidMsb, attr.uuidLsb)));
+                    break;
+
+                default:
+                    // Services were already reported by the search itself.
+                    break;
             }
         }
+        app.callback.onSearchComplete(address, 0);
+        return true;
+    }
+
+    private boolean isBonded(String address) {
+        return mAdapter.getRemoteDevice(address).getBondState() == BluetoothDevice.BOND_BONDED;
     }
 
     private void continueServiceDeclaration(int serverIf, int status, int srvcHandle) throws RemoteException {
@@ -2264,36 +2524,6 @@ public class GattService extends ProfileService {
         }
     }
 
-    private List<UUID> parseUuids(byte[] adv_data) {
-        List<UUID> uuids = new ArrayList<UUID>();
-
-        int offset = 0;
-        while(offset < (adv_data.length-2)) {
-            int len = adv_data[offset++];
-            if (len == 0) break;
-
-            int type = adv_data[offset++];
-            switch (type) {
-                case 0x02: // Partial list of 16-bit UUIDs
-                case 0x03: // Complete list of 16-bit UUIDs
-                    while (len > 1) {
-                        int uuid16 = adv_data[offset++];
-                        uuid16 += (adv_data[offset++] << 8);
-                        len -= 2;
-                        uuids.add(UUID.fromString(String.format(
-                            "%08x-0000-1000-8000-00805f9b34fb", uuid16)));
-                    }
-                    break;
-
-                default:
-                    offset += (len - 1);
-                    break;
-            }
-        }
-
-        return uuids;
-    }
-
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
@@ -2302,10 +2532,8 @@ public class GattService extends ProfileService {
             println(sb, "  " + uuid);
         }
         println(sb, "mOnFoundResults:");
-        for (ScanResult result : mOnFoundResults.values()) {
-            println(sb, "  " + result);
-        }
-        println(sb, "mOnFoundResults:");
+        mOnFoundResults.dump(sb);
+        println(sb, "mServiceDeclarations:");
         for (ServiceDeclaration declaration : mServiceDeclarations) {
             println(sb, "  " + declaration);
         }
@@ -2319,6 +2547,11 @@ public class GattService extends ProfileService {
 
         sb.append("\nGATT Handle Map\n");
         mHandleMap.dump(sb);
+
+        if (mScanManager != null) {
+            sb.append("\nGATT Scan Manager\n");
+            mScanManager.dump(sb);
+        }
     }
 
     /**************************************************************************
@@ -16,6 +16,8 @@
 package com.android.bluetooth.gatt;
 
 import android.util.Log;
+import android.util.SparseArray;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -84,62 +86,81 @@ class HandleMap {
         }
     }
 
-    List<Entry> mEntries = null;
+    // All entries, keyed and ordered by attribute handle.
+    SparseArray<Entry> mEntries = null;
+    // Service and characteristic entries sharing the same UUID.
+    Map<UUID, List<Entry>> mServicesByUuid = null;
+    Map<UUID, List<Entry>> mCharacteristicsByUuid = null;
+    // Characteristic and descriptor entries, keyed by their service handle.
+    SparseArray<List<Entry>> mServiceChildren = null;
     Map<Integer, Integer> mRequestMap = null;
     int mLastCharacteristic = 0;
 
     HandleMap() {
-        mEntries = new ArrayList<Entry>();
+        mEntries = new SparseArray<Entry>();
+        mServicesByUuid = new HashMap<UUID, List<Entry>>();
+        mCharacteristicsByUuid = new HashMap<UUID, List<Entry>>();
+        mServiceChildren = new SparseArray<List<Entry>>();
         mRequestMap = new HashMap<Integer, Integer>();
     }
 
     void clear() {
         mEntries.clear();
+        mServicesByUuid.clear();
+        mCharacteristicsByUuid.clear();
+        mServiceChildren.clear();
         mRequestMap.clear();
     }
 
     void addService(int serverIf, int handle, UUID uuid, int serviceType, int instance,
         boolean advertisePreferred) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
+        Entry entry = new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred);
+        mEntries.put(handle, entry);
+        addToIndex(mServicesByUuid, uuid, entry);
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        Entry entry = new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle);
+        mEntries.put(handle, entry);
+        addToIndex(mCharacteristicsByUuid, uuid, entry);
+        addChild(serviceHandle, entry);
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle, mLastCharacteristic));
+        Entry entry = new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
+                mLastCharacteristic);
+        mEntries.put(handle, entry);
+        addChild(serviceHandle, entry);
     }
 
     void setStarted(int serverIf, int handle, boolean started) {
-        for(Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE ||
-                entry.serverIf != serverIf ||
-                entry.handle != handle)
-                continue;
-
-            entry.started = started;
+        Entry entry = mEntries.get(handle);
+        if (entry == null ||
+            entry.type != TYPE_SERVICE ||
+            entry.serverIf != serverIf)
             return;
-        }
+
+        entry.started = started;
     }
 
     Entry getByHandle(int handle) {
-        for(Entry entry : mEntries) {
-            if (entry.handle == handle)
-                return entry;
-        }
+        Entry entry = mEntries.get(handle);
+        if (entry != null)
+            return entry;
         Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
         return null;
     }
 
     int getServiceHandle(UUID uuid, int serviceType, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE &&
-                entry.serviceType == serviceType &&
-                entry.instance == instance &&
-                entry.uuid.equals(uuid)) {
-                return entry.handle;
+        List<Entry> services = mServicesByUuid.get(uuid);
+        if (services != null) {
+            for (int i = 0; i < services.size(); i++) {
+                Entry entry = services.get(i);
+                if (entry.serviceType == serviceType &&
+                    entry.instance == instance) {
+                    return entry.handle;
+                }
             }
         }
         Log.e(TAG, "getServiceHandle() - UUID " + uuid + " not found!");
@@ -147,12 +168,14 @@ class HandleMap {
     }
 
     int getCharacteristicHandle(int serviceHandle, UUID uuid, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_CHARACTERISTIC &&
-                entry.serviceHandle == serviceHandle &&
-                entry.instance == instance &&
-                entry.uuid.equals(uuid)) {
-                return entry.handle;
+        List<Entry> characteristics = mCharacteristicsByUuid.get(uuid);
+        if (characteristics != null) {
+            for (int i = 0; i < characteristics.size(); i++) {
+                Entry entry = characteristics.get(i);
+                if (entry.serviceHandle == serviceHandle &&
+                    entry.instance == instance) {
+                    return entry.handle;
+                }
             }
         }
         Log.e(TAG, "getCharacteristicHandle() - Service " + serviceHandle
@@ -161,18 +184,66 @@ class HandleMap {
     }
 
     void deleteService(int serverIf, int serviceHandle) {
-        for(Iterator <Entry> it = mEntries.iterator(); it.hasNext();) {
-            Entry entry = it.next();
-            if (entry.serverIf != serverIf) continue;
+        List<Entry> children = mServiceChildren.get(serviceHandle);
+        if (children != null) {
+            for (Iterator<Entry> it = children.iterator(); it.hasNext();) {
+                Entry entry = it.next();
+                if (entry.serverIf != serverIf) continue;
 
-            if (entry.handle == serviceHandle ||
-                entry.serviceHandle == serviceHandle)
                 it.remove();
+                mEntries.remove(entry.handle);
+                if (entry.type == TYPE_CHARACTERISTIC) {
+                    removeFromIndex(mCharacteristicsByUuid, entry);
+                }
+            }
+            if (children.isEmpty()) {
+                mServiceChildren.remove(serviceHandle);
+            }
+        }
+
+        Entry service = mEntries.get(serviceHandle);
+        if (service != null && service.serverIf == serverIf) {
+            mEntries.remove(serviceHandle);
+            removeFromIndex(mServicesByUuid, service);
         }
     }
 
+    /**
+     * Returns a snapshot of all entries, ordered by handle.
+     */
     List<Entry> getEntries() {
-        return mEntries;
+        List<Entry> entries = new ArrayList<Entry>(mEntries.size());
+        for (int i = 0; i < mEntries.size(); i++) {
+            entries.add(mEntries.valueAt(i));
+        }
+        return entries;
+    }
+
+    private void addChild(int serviceHandle, Entry entry) {
+        List<Entry> children = mServiceChildren.get(serviceHandle);
+        if (children == null) {
+            children = new ArrayList<Entry>();
+            mServiceChildren.put(serviceHandle, children);
+        }
+        children.add(entry);
+    }
+
+    private static void addToIndex(Map<UUID, List<Entry>> index, UUID uuid, Entry entry) {
+        List<Entry> entries = index.get(uuid);
+        if (entries == null) {
+            entries = new ArrayList<Entry>(1);
+            index.put(uuid, entries);
+        }
+        entries.add(entry);
+    }
+
+    private static void removeFromIndex(Map<UUID, List<Entry>> index, Entry entry) {
+        List<Entry> entries = index.get(entry.uuid);
+        if (entries == null) return;
+        entries.remove(entry);
+        if (entries.isEmpty()) {
+            index.remove(entry.uuid);
+        }
     }
 
     void addRequest(int requestId, int handle) {
@@ -200,7 +271,8 @@ class HandleMap {
         sb.append("  Entries: " + mEntries.size() + "\n");
         sb.append("  Requests: " + mRequestMap.size() + "\n");
 
-        for (Entry entry : mEntries) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry entry = mEntries.valueAt(i);
             sb.append("  " + entry.serverIf + ": [" + entry.handle + "] ");
             switch(entry.type) {
                 case TYPE_SERVICE:
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Index of the regular scan clients used to route an advertisement only to
+ * the clients whose filters can possibly match it.
+ *
+ * Every filter of a client is indexed under its most selective key (device
+ * address, service UUID or manufacturer id). Clients with a filter that has
+ * none of these keys are kept in the match-all list. The index only narrows
+ * down the candidates, callers still need to run the full filter match.
+ *
+ * @hide
+ */
+/* package */class ScanDispatchIndex {
+    private final Map<String, List<ScanClient>> mByAddress =
+            new HashMap<String, List<ScanClient>>();
+    // Service UUIDs, bucketed by the upper 32 bits of the UUID which hold the short
+    // UUID of the UUIDs derived from the base UUID.
+    private final SparseArray<List<UuidEntry>> mByServiceUuid =
+            new SparseArray<List<UuidEntry>>();
+    private final SparseArray<List<ScanClient>> mByManufacturerId =
+            new SparseArray<List<ScanClient>>();
+    private final List<ScanClient> mMatchAll = new ArrayList<ScanClient>();
+
+    // Registered clients, keyed by client interface.
+    private final SparseArray<ScanClient> mClients = new SparseArray<ScanClient>();
+
+    synchronized void add(ScanClient client) {
+        if (mClients.get(client.clientIf) != null) {
+            return;
+        }
+        mClients.put(client.clientIf, client);
+
+        if (client.uuids != null && client.uuids.length > 0) {
+            // All legacy UUIDs have to be present, so the first one is enough as a key.
+            addServiceUuid(client.uuids[0], client);
+            return;
+        }
+        if (client.filters == null || client.filters.isEmpty()) {
+            mMatchAll.add(client);
+            return;
+        }
+        for (ScanFilter filter : client.filters) {
+            if (filter == null) {
+                addUnique(mMatchAll, client);
+            } else if (filter.getDeviceAddress() != null) {
+                addTo(mByAddress, filter.getDeviceAddress(), client);
+            } else if (filter.getServiceUuid() != null && filter.getServiceUuidMask() == null) {
+                addServiceUuid(filter.getServiceUuid().getUuid(), client);
+            } else if (filter.getManufacturerId() >= 0) {
+                List<ScanClient> clients = mByManufacturerId.get(filter.getManufacturerId());
+                if (clients == null) {
+                    clients = new ArrayList<ScanClient>();
+                    mByManufacturerId.put(filter.getManufacturerId(), clients);
+                }
+                addUnique(clients, client);
+            } else {
+                addUnique(mMatchAll, client);
+            }
+        }
+    }
+
+    synchronized void remove(int clientIf) {
+        ScanClient client = mClients.get(clientIf);
+        if (client == null) {
+            return;
+        }
+        mClients.remove(clientIf);
+
+        mMatchAll.remove(client);
+        removeFrom(mByAddress, client);
+        for (int i = mByServiceUuid.size() - 1; i >= 0; i--) {
+            List<UuidEntry> entries = mByServiceUuid.valueAt(i);
+            for (Iterator<UuidEntry> it = entries.iterator(); it.hasNext();) {
+                UuidEntry entry = it.next();
+                entry.clients.remove(client);
+                if (entry.clients.isEmpty()) {
+                    it.remove();
+                }
+            }
+            if (entries.isEmpty()) {
+                mByServiceUuid.removeAt(i);
+            }
+        }
+        for (int i = mByManufacturerId.size() - 1; i >= 0; i--) {
+            List<ScanClient> clients = mByManufacturerId.valueAt(i);
+            clients.remove(client);
+            if (clients.isEmpty()) {
+                mByManufacturerId.removeAt(i);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mClients.clear();
+        mMatchAll.clear();
+        mByAddress.clear();
+        mByServiceUuid.clear();
+        mByManufacturerId.clear();
+    }
+
+    synchronized int size() {
+        return mClients.size();
+    }
+
+    /**
+     * Collect the clients that may be interested in an advertisement into
+     * {@code candidates}. Each client is added at most once.
+     */
+    synchronized void getCandidates(String address, AdvertiseDataParser parser,
+            List<ScanClient> candidates) {
+        candidates.addAll(mMatchAll);
+        if (mClients.size() == candidates.size()) {
+            return;
+        }
+
+        List<ScanClient> clients = mByAddress.get(address);
+        if (clients != null) {
+            addAllUnique(candidates, clients);
+        }
+
+        if (mByServiceUuid.size() > 0) {
+            for (int i = 0; i < parser.getServiceUuidCount(); i++) {
+                long msb = parser.getServiceUuidMsb(i);
+                long lsb = parser.getServiceUuidLsb(i);
+                List<UuidEntry> entries = mByServiceUuid.get((int) (msb >>> 32));
+                if (entries == null) continue;
+                for (int j = 0; j < entries.size(); j++) {
+                    UuidEntry entry = entries.get(j);
+                    if (entry.msb == msb && entry.lsb == lsb) {
+                        addAllUnique(candidates, entry.clients);
+                    }
+                }
+            }
+        }
+
+        if (mByManufacturerId.size() > 0) {
+            for (int i = 0; i < parser.getManufacturerIdCount(); i++) {
+                clients = mByManufacturerId.get(parser.getManufacturerId(i));
+                if (clients != null) {
+                    addAllUnique(candidates, clients);
+                }
+            }
+        }
+    }
+
+    private void addServiceUuid(UUID uuid, ScanClient client) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        int key = (int) (msb >>> 32);
+        List<UuidEntry> entries = mByServiceUuid.get(key);
+        if (entries == null) {
+            entries = new ArrayList<UuidEntry>();
+            mByServiceUuid.put(key, entries);
+        }
+        for (UuidEntry entry : entries) {
+            if (entry.msb == msb && entry.lsb == lsb) {
+                addUnique(entry.clients, client);
+                return;
+            }
+        }
+        UuidEntry entry = new UuidEntry(msb, lsb);
+        entry.clients.add(client);
+        entries.add(entry);
+    }
+
+    private static <K> void addTo(Map<K, List<ScanClient>> index, K key, ScanClient client) {
+        List<ScanClient> clients = index.get(key);
+        if (clients == null) {
+            clients = new ArrayList<ScanClient>();
+            index.put(key, clients);
+        }
+        addUnique(clients, client);
+    }
+
+    private static <K> void removeFrom(Map<K, List<ScanClient>> index, ScanClient client) {
+        for (Iterator<List<ScanClient>> it = index.values().iterator();
+                it.hasNext();) {
+            List<ScanClient> clients = it.next();
+            clients.remove(client);
+            if (clients.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static void addUnique(List<ScanClient> clients, ScanClient client) {
+        if (!clients.contains(client)) {
+            clients.add(client);
+        }
+    }
+
+    private static void addAllUnique(List<ScanClient> candidates, List<ScanClient> clients) {
+        for (int i = 0; i < clients.size(); i++) {
+            addUnique(candidates, clients.get(i));
+        }
+    }
+
+    private static class UuidEntry {
+        final long msb;
+        final long lsb;
+        final List<ScanClient> clients = new ArrayList<ScanClient>();
+
+        UuidEntry(long msb, long lsb) {
+            this.msb = msb;
+            this.lsb = lsb;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanSettings;
+
+import java.util.Collection;
+
+/**
+ * Maps the regular scan clients to the duty cycle the controller runs, and
+ * remembers the one applied so that the controller is only reconfigured when
+ * it changes.
+ *
+ * The controller runs a single scan for all the clients, so the duty cycle
+ * is the one of the most demanding client. Updated from the
+ * {@link ScanManager} handler thread, read and reset from binder threads.
+ *
+ * @hide
+ */
+/* package */class ScanDutyCycle {
+    /**
+     * Scan params corresponding to regular scan setting
+     */
+    private static final int SCAN_MODE_LOW_POWER_WINDOW_MS = 500;
+    private static final int SCAN_MODE_LOW_POWER_INTERVAL_MS = 5000;
+    private static final int SCAN_MODE_BALANCED_WINDOW_MS = 2000;
+    private static final int SCAN_MODE_BALANCED_INTERVAL_MS = 5000;
+    private static final int SCAN_MODE_LOW_LATENCY_WINDOW_MS = 5000;
+    private static final int SCAN_MODE_LOW_LATENCY_INTERVAL_MS = 5000;
+
+    /**
+     * Scan window and interval the controller is configured with.
+     */
+    static class Params {
+        final int scanMode;
+        final int windowMillis;
+        final int intervalMillis;
+
+        Params(int scanMode, int windowMillis, int intervalMillis) {
+            this.scanMode = scanMode;
+            this.windowMillis = windowMillis;
+            this.intervalMillis = intervalMillis;
+        }
+
+        int getPercent() {
+            return windowMillis * 100 / intervalMillis;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Params other = (Params) obj;
+            return windowMillis == other.windowMillis && intervalMillis == other.intervalMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * windowMillis + intervalMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "mode=" + scanMode + ", window=" + windowMillis + "ms, interval="
+                    + intervalMillis + "ms (" + getPercent() + "%)";
+        }
+    }
+
+    private Params mEffectiveDutyCycle;
+    private int mReconfigurationCount;
+
+    /**
+     * Returns the duty cycle the controller should run, or null if no client is scanning.
+     */
+    Params getDutyCycle(Collection<ScanClient> clients) {
+        int scanMode = Integer.MIN_VALUE;
+        for (ScanClient client : clients) {
+            // ScanClient scan settings are assumed to be monotonically increasing in value for
+            // more power hungry(higher duty cycle) operation.
+            scanMode = Math.max(scanMode, client.settings.getScanMode());
+        }
+        if (scanMode == Integer.MIN_VALUE) {
+            return null;
+        }
+        return getDutyCycle(scanMode);
+    }
+
+    /**
+     * Record the duty cycle applied to the controller.
+     *
+     * @return true if it differs from the one currently applied.
+     */
+    synchronized boolean apply(Params dutyCycle) {
+        if (dutyCycle == null ? mEffectiveDutyCycle == null
+                : dutyCycle.equals(mEffectiveDutyCycle)) {
+            return false;
+        }
+        mEffectiveDutyCycle = dutyCycle;
+        if (dutyCycle != null) {
+            mReconfigurationCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the duty cycle currently applied, or null if scan is stopped.
+     */
+    synchronized Params getEffectiveDutyCycle() {
+        return mEffectiveDutyCycle;
+    }
+
+    synchronized void reset() {
+        mEffectiveDutyCycle = null;
+    }
+
+    /**
+     * Logs debug information.
+     */
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Effective duty cycle: "
+                + (mEffectiveDutyCycle == null ? "stopped" : mEffectiveDutyCycle) + "\n");
+        sb.append("  Controller reconfigurations: " + mReconfigurationCount + "\n");
+    }
+
+    private static Params getDutyCycle(int scanMode) {
+        switch (scanMode) {
+            case ScanSettings.SCAN_MODE_LOW_POWER:
+                return new Params(scanMode, SCAN_MODE_LOW_POWER_WINDOW_MS,
+                        SCAN_MODE_LOW_POWER_INTERVAL_MS);
+            case ScanSettings.SCAN_MODE_BALANCED:
+                return new Params(scanMode, SCAN_MODE_BALANCED_WINDOW_MS,
+                        SCAN_MODE_BALANCED_INTERVAL_MS);
+            case ScanSettings.SCAN_MODE_LOW_LATENCY:
+                return new Params(scanMode, SCAN_MODE_LOW_LATENCY_WINDOW_MS,
+                        SCAN_MODE_LOW_LATENCY_INTERVAL_MS);
+            default:
+                return new Params(scanMode, SCAN_MODE_LOW_POWER_WINDOW_MS,
+                        SCAN_MODE_LOW_POWER_INTERVAL_MS);
+        }
+    }
+}
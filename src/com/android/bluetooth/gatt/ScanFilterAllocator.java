@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Hands out controller filter indices to scan filters.
+ *
+ * Filters with the same entries and filter parameters share a single
+ * controller slot, which is reference counted and only freed once the last
+ * filter using it is released. Not thread safe, only used from the
+ * {@link ScanManager} handler thread.
+ *
+ * @hide
+ */
+/* package */class ScanFilterAllocator {
+
+    /**
+     * A controller filter slot.
+     */
+    static class Slot {
+        final int filterIndex;
+        final Key key;
+        int refCount;
+
+        Slot(int filterIndex, Key key) {
+            this.filterIndex = filterIndex;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Identifies the filters that can share a slot.
+     */
+    static class Key {
+        final Set<ScanFilterQueue.Entry> entries;
+        final int deliveryMode;
+        final int timeout;
+
+        Key(Set<ScanFilterQueue.Entry> entries, int deliveryMode, int timeout) {
+            this.entries = entries;
+            this.deliveryMode = deliveryMode;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(entries, deliveryMode, timeout);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return entries.equals(other.entries) && deliveryMode == other.deliveryMode
+                    && timeout == other.timeout;
+        }
+    }
+
+    private final Deque<Integer> mFreeIndices = new ArrayDeque<Integer>();
+    private final Map<Key, Slot> mSharedSlots = new HashMap<Key, Slot>();
+    // All slots in use, keyed by filter index.
+    private final SparseArray<Slot> mSlots = new SparseArray<Slot>();
+    private boolean mInitialized;
+
+    private int mAllocations;
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * Make the filter indices in [{@code firstIndex}, {@code maxIndex}) available.
+     */
+    void init(int firstIndex, int maxIndex) {
+        mFreeIndices.clear();
+        mSharedSlots.clear();
+        mSlots.clear();
+        for (int i = firstIndex; i < maxIndex; ++i) {
+            mFreeIndices.add(i);
+        }
+        mInitialized = true;
+    }
+
+    boolean isInitialized() {
+        return mInitialized;
+    }
+
+    /**
+     * Acquire a slot for a filter. A slot with a reference count of one has just been allocated
+     * and still needs to be programmed into the controller.
+     *
+     * @param shareable whether the slot may be shared with other filters.
+     * @return the slot, or null if the controller ran out of slots.
+     */
+    Slot acquire(Key key, boolean shareable) {
+        if (shareable) {
+            Slot slot = mSharedSlots.get(key);
+            if (slot != null) {
+                slot.refCount++;
+                mHits++;
+                return slot;
+            }
+        }
+        if (mFreeIndices.isEmpty()) {
+            mMisses++;
+            return null;
+        }
+        Slot slot = new Slot(mFreeIndices.pop(), key);
+        slot.refCount = 1;
+        mSlots.put(slot.filterIndex, slot);
+        if (shareable) {
+            mSharedSlots.put(key, slot);
+        }
+        mAllocations++;
+        return slot;
+    }
+
+    /**
+     * Release a reference on the slot at {@code filterIndex}.
+     *
+     * @return true if the slot is no longer used and has to be cleared in the controller.
+     */
+    boolean release(int filterIndex) {
+        Slot slot = mSlots.get(filterIndex);
+        if (slot == null) {
+            return false;
+        }
+        if (--slot.refCount > 0) {
+            return false;
+        }
+        mSlots.remove(filterIndex);
+        if (mSharedSlots.get(slot.key) == slot) {
+            mSharedSlots.remove(slot.key);
+        }
+        mFreeIndices.push(filterIndex);
+        return true;
+    }
+
+    /**
+     * Logs debug information.
+     */
+    void dump(StringBuilder sb) {
+        sb.append("  Filter slots in use: " + mSlots.size() + ", free: "
+                + mFreeIndices.size() + "\n");
+        sb.append("  Filter offload: allocations " + mAllocations + ", shared hits " + mHits
+                + ", misses " + mMisses + "\n");
+    }
+}
@@ -20,6 +20,7 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -31,7 +32,9 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 
+import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 
@@ -39,10 +42,12 @@ import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class that handles Bluetooth LE scan related operations.
@@ -62,6 +67,8 @@ public class ScanManager {
     private static final int MSG_START_BLE_SCAN = 0;
     private static final int MSG_STOP_BLE_SCAN = 1;
     private static final int MSG_FLUSH_BATCH_RESULTS = 2;
+    private static final int MSG_FLUSH_SOFTWARE_BATCH_RESULTS = 3;
+    private static final int MSG_CONFIGURE_REGULAR_SCAN = 4;
 
     private static final String ACTION_REFRESH_BATCHED_SCAN =
             "com.android.bluetooth.gatt.REFRESH_BATCHED_SCAN";
@@ -69,7 +76,18 @@ public class ScanManager {
     // Timeout for each controller operation.
     private static final int OPERATION_TIME_OUT_MILLIS = 500;
 
-    private int mLastConfiguredScanSetting = Integer.MIN_VALUE;
+    // Callbacks of the controller operations sent since the last wait. Operations are sent
+    // back to back and their callbacks awaited together, the controller handles them in order.
+    private final Semaphore mCallbacks = new Semaphore(0);
+    private int mPendingOperations;
+    // Callbacks still awaited. Callbacks beyond this count are late ones of operations that
+    // timed out, and must not end the wait of a later batch.
+    private final AtomicInteger mExpectedCallbacks = new AtomicInteger();
+
+    // Merges the regular scan clients into the controller duty cycle.
+    private final ScanDutyCycle mScanDutyCycle = new ScanDutyCycle();
+    // Controller filter slots for offloaded scan filters.
+    private final ScanFilterAllocator mFilterAllocator = new ScanFilterAllocator();
     // Scan parameters for batch scan.
     private BatchScanParams mBatchScanParms;
 
@@ -81,14 +99,25 @@ public class ScanManager {
 
     private Set<ScanClient> mRegularScanClients;
     private Set<ScanClient> mBatchClients;
-
-    private CountDownLatch mLatch;
+    // Routes advertisements of regular scans to the interested clients.
+    private final ScanDispatchIndex mRegularScanIndex = new ScanDispatchIndex();
+    // Pending results of batch scans that are not offloaded to the controller.
+    private final ScanResultBatcher mSoftwareBatches;
+    private final boolean mSoftwareBatchEnabled;
+    // Tokens of the flush messages of the software batches, keyed by clientIf, so that the
+    // messages of a client are found whichever ScanClient instance refers to it. A client has
+    // a token from the start to the stop of its scan, results arriving outside are dropped.
+    private final SparseArray<Object> mFlushTokens = new SparseArray<Object>();
 
     ScanManager(GattService service) {
         mRegularScanClients = new HashSet<ScanClient>();
         mBatchClients = new HashSet<ScanClient>();
         mService = service;
         mScanNative = new ScanNative();
+        mSoftwareBatchEnabled = service.getResources().getBoolean(
+                R.bool.gatt_software_batch_scan);
+        mSoftwareBatches = new ScanResultBatcher(service.getResources().getInteger(
+                R.integer.gatt_software_batch_max_results));
     }
 
     void start() {
@@ -99,6 +128,12 @@ public class ScanManager {
 
     void cleanup() {
         mRegularScanClients.clear();
+        mRegularScanIndex.clear();
+        synchronized (mFlushTokens) {
+            mFlushTokens.clear();
+            mSoftwareBatches.clear();
+        }
+        mScanDutyCycle.reset();
         mBatchClients.clear();
         mScanNative.cleanup();
 
@@ -120,6 +155,13 @@ public class ScanManager {
         return mRegularScanClients;
     }
 
+    /**
+     * Returns the dispatch index of the regular scan queue.
+     */
+    ScanDispatchIndex getRegularScanIndex() {
+        return mRegularScanIndex;
+    }
+
     /**
      * Returns batch scan queue.
      */
@@ -154,11 +196,46 @@ public class ScanManager {
         sendMessage(MSG_FLUSH_BATCH_RESULTS, client);
     }
 
+    /**
+     * Queue a result of a software batch scan client. The batch is delivered once the report
+     * delay of the client expires or the batch is full, whichever comes first.
+     */
+    void addSoftwareBatchResult(ScanClient client, ScanResult result) {
+        ClientHandler handler = mHandler;
+        if (handler == null) return;
+        // Held across the add so that a concurrent stop either sees the result or makes it
+        // be dropped here.
+        synchronized (mFlushTokens) {
+            Object token = mFlushTokens.get(client.clientIf);
+            if (token == null) {
+                // The scan has been stopped.
+                return;
+            }
+            int pending = mSoftwareBatches.add(client.clientIf, result);
+            if (pending >= mSoftwareBatches.getMaxResults()) {
+                handler.removeMessages(MSG_FLUSH_SOFTWARE_BATCH_RESULTS, token);
+                handler.sendMessage(handler.obtainMessage(MSG_FLUSH_SOFTWARE_BATCH_RESULTS,
+                        client.clientIf, 0, token));
+            } else if (pending == 1) {
+                handler.sendMessageDelayed(handler.obtainMessage(
+                        MSG_FLUSH_SOFTWARE_BATCH_RESULTS, client.clientIf, 0, token),
+                        client.settings.getReportDelayMillis());
+            }
+        }
+    }
+
     void callbackDone(int clientIf, int status) {
         logd("callback done for clientIf - " + clientIf + " status - " + status);
-        if (status == 0) {
-            mLatch.countDown();
-        }
+        // The operation is over either way, don't keep the batch waiting for it.
+        int expected;
+        do {
+            expected = mExpectedCallbacks.get();
+            if (expected == 0) {
+                logd("unexpected callback dropped");
+                return;
+            }
+        } while (!mExpectedCallbacks.compareAndSet(expected, expected - 1));
+        mCallbacks.release();
         // TODO: add a callback for scan failure.
     }
 
@@ -174,6 +251,11 @@ public class ScanManager {
         return adapter.isOffloadedFilteringSupported();
     }
 
+    private boolean isBatchingSupported() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        return adapter.isOffloadedScanBatchingSupported();
+    }
+
     // Handler class that handles BLE scan operations.
     private class ClientHandler extends Handler {
 
@@ -183,6 +265,10 @@ public class ScanManager {
 
         @Override
         public void handleMessage(Message msg) {
+            if (msg.what == MSG_FLUSH_SOFTWARE_BATCH_RESULTS) {
+                handleFlushSoftwareBatchResults(msg.arg1);
+                return;
+            }
             ScanClient client = (ScanClient) msg.obj;
             switch (msg.what) {
                 case MSG_START_BLE_SCAN:
@@ -194,6 +280,9 @@ public class ScanManager {
                 case MSG_FLUSH_BATCH_RESULTS:
                     handleFlushBatchResults(client);
                     break;
+                case MSG_CONFIGURE_REGULAR_SCAN:
+                    mScanNative.configureRegularScanParams();
+                    break;
                 default:
                     // Shouldn't happen.
                     Log.e(TAG, "received an unkown message : " + msg.what);
@@ -218,9 +307,17 @@ public class ScanManager {
                 mBatchClients.add(client);
                 mScanNative.startBatchScan(client);
             } else {
+                // Batch scans the controller can't offload are coalesced on the host.
+                client.softwareBatch = isSoftwareBatchClient(client);
+                if (client.softwareBatch) {
+                    synchronized (mFlushTokens) {
+                        mFlushTokens.put(client.clientIf, new Object());
+                    }
+                }
                 mRegularScanClients.add(client);
+                mRegularScanIndex.add(client);
                 mScanNative.startRegularScan(client);
-                mScanNative.configureRegularScanParams();
+                scheduleConfigureRegularScan();
             }
         }
 
@@ -228,8 +325,16 @@ public class ScanManager {
             Utils.enforceAdminPermission(mService);
             if (client == null) return;
             if (mRegularScanClients.contains(client)) {
+                synchronized (mFlushTokens) {
+                    Object token = mFlushTokens.get(client.clientIf);
+                    if (token != null) {
+                        removeMessages(MSG_FLUSH_SOFTWARE_BATCH_RESULTS, token);
+                        mFlushTokens.remove(client.clientIf);
+                    }
+                    mSoftwareBatches.remove(client.clientIf);
+                }
                 mScanNative.stopRegularScan(client);
-                mScanNative.configureRegularScanParams();
+                scheduleConfigureRegularScan();
             } else {
                 mScanNative.stopBatchScan(client);
             }
@@ -242,31 +347,93 @@ public class ScanManager {
         void handleFlushBatchResults(ScanClient client) {
             Utils.enforceAdminPermission(mService);
             if (!mBatchClients.contains(client)) {
+                handleFlushSoftwareBatchResults(client.clientIf);
                 return;
             }
             mScanNative.flushBatchResults(client.clientIf);
         }
 
-        private boolean isBatchClient(ScanClient client) {
-            if (client == null || client.settings == null) {
-                return false;
+        // Configure the controller once all the start and stop requests that are already
+        // queued have been handled.
+        private void scheduleConfigureRegularScan() {
+            if (!hasMessages(MSG_CONFIGURE_REGULAR_SCAN)) {
+                sendEmptyMessage(MSG_CONFIGURE_REGULAR_SCAN);
             }
-            ScanSettings settings = client.settings;
-            return settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES &&
-                    settings.getReportDelayMillis() != 0;
         }
 
-        private boolean isScanSupported(ScanClient client) {
-            if (client == null || client.settings == null) {
-                return true;
+        void handleFlushSoftwareBatchResults(int clientIf) {
+            List<ScanResult> results;
+            synchronized (mFlushTokens) {
+                Object token = mFlushTokens.get(clientIf);
+                if (token != null) {
+                    removeMessages(MSG_FLUSH_SOFTWARE_BATCH_RESULTS, token);
+                }
+                results = mSoftwareBatches.drain(clientIf);
             }
-            ScanSettings settings = client.settings;
-            if (isFilteringSupported()) {
-                return true;
+            if (results == null) {
+                return;
+            }
+            for (ScanClient client : mRegularScanClients) {
+                if (client.clientIf == clientIf) {
+                    mService.onSoftwareBatchScanResults(client, results);
+                    return;
+                }
             }
-            return settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES &&
-                    settings.getReportDelayMillis() == 0;
         }
+
+        private boolean isBatchClient(ScanClient client) {
+            return client != null && ScanManager.isBatchClient(client.settings,
+                    isBatchingSupported(), mSoftwareBatchEnabled);
+        }
+
+        private boolean isSoftwareBatchClient(ScanClient client) {
+            return client != null && ScanManager.isSoftwareBatchClient(client.settings,
+                    isBatchingSupported(), mSoftwareBatchEnabled);
+        }
+
+        private boolean isScanSupported(ScanClient client) {
+            return client == null || ScanManager.isScanSupported(client.settings,
+                    isFilteringSupported(), isBatchingSupported(), mSoftwareBatchEnabled);
+        }
+    }
+
+    /**
+     * Whether a scan is started as a controller batch scan. Unless software batching is
+     * enabled, batch settings always go to the controller, as they did before it existed.
+     */
+    static boolean isBatchClient(ScanSettings settings, boolean batchingSupported,
+            boolean softwareBatchEnabled) {
+        return isBatchScanSettings(settings)
+                && !isSoftwareBatchClient(settings, batchingSupported, softwareBatchEnabled);
+    }
+
+    /**
+     * Whether a scan is run as a regular scan whose results are batched on the host.
+     */
+    static boolean isSoftwareBatchClient(ScanSettings settings, boolean batchingSupported,
+            boolean softwareBatchEnabled) {
+        return softwareBatchEnabled && !batchingSupported && isBatchScanSettings(settings);
+    }
+
+    static boolean isScanSupported(ScanSettings settings, boolean filteringSupported,
+            boolean batchingSupported, boolean softwareBatchEnabled) {
+        if (settings == null) {
+            return true;
+        }
+        if (filteringSupported) {
+            return true;
+        }
+        return settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES &&
+                (settings.getReportDelayMillis() == 0
+                || isSoftwareBatchClient(settings, batchingSupported, softwareBatchEnabled));
+    }
+
+    private static boolean isBatchScanSettings(ScanSettings settings) {
+        if (settings == null) {
+            return false;
+        }
+        return settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES &&
+                settings.getReportDelayMillis() != 0;
     }
 
     /**
@@ -314,16 +481,6 @@ public class ScanManager {
 
         private static final int DISCARD_OLDEST_WHEN_BUFFER_FULL = 0;
 
-        /**
-         * Scan params corresponding to regular scan setting
-         */
-        private static final int SCAN_MODE_LOW_POWER_WINDOW_MS = 500;
-        private static final int SCAN_MODE_LOW_POWER_INTERVAL_MS = 5000;
-        private static final int SCAN_MODE_BALANCED_WINDOW_MS = 2000;
-        private static final int SCAN_MODE_BALANCED_INTERVAL_MS = 5000;
-        private static final int SCAN_MODE_LOW_LATENCY_WINDOW_MS = 5000;
-        private static final int SCAN_MODE_LOW_LATENCY_INTERVAL_MS = 5000;
-
         /**
          * Scan params corresponding to batch scan setting
          */
@@ -337,8 +494,6 @@ public class ScanManager {
         // The logic is AND for each filter field.
         private static final int LIST_LOGIC_TYPE = 0x1111111;
         private static final int FILTER_LOGIC_TYPE = 1;
-        // Filter indices that are available to user. It's sad we need to maintain filter index.
-        private final Deque<Integer> mFilterIndexStack;
         // Map of clientIf and Filter indices used by client.
         private final Map<Integer, Deque<Integer>> mClientFilterIndexMap;
         // Keep track of the clients that uses ALL_PASS filters.
@@ -349,7 +504,6 @@ public class ScanManager {
         private PendingIntent mBatchScanIntervalIntent;
 
         ScanNative() {
-            mFilterIndexStack = new ArrayDeque<Integer>();
             mClientFilterIndexMap = new HashMap<Integer, Deque<Integer>>();
 
             mAlarmManager = (AlarmManager) mService.getSystemService(Context.ALARM_SERVICE);
@@ -377,83 +531,60 @@ public class ScanManager {
             mBatchAlarmReceiverRegistered = true;
         }
 
-        private void resetCountDownLatch() {
-            mLatch = new CountDownLatch(1);
+        // Must be called before sending an operation whose callback is awaited.
+        private void expectCallback() {
+            mPendingOperations++;
+            mExpectedCallbacks.incrementAndGet();
         }
 
-        // Returns true if mLatch reaches 0, false if timeout or interrupted.
-        private boolean waitForCallback() {
+        // Waits for the callbacks of the operations sent since the last wait. Returns true if
+        // all of them arrived, false if timeout or interrupted.
+        private boolean waitForCallbacks() {
+            int pending = mPendingOperations;
+            mPendingOperations = 0;
+            if (pending == 0) {
+                return true;
+            }
+            boolean done;
             try {
-                return mLatch.await(OPERATION_TIME_OUT_MILLIS, TimeUnit.MILLISECONDS);
+                done = mCallbacks.tryAcquire(pending, OPERATION_TIME_OUT_MILLIS * pending,
+                        TimeUnit.MILLISECONDS);
             } catch (InterruptedException e) {
-                return false;
+                done = false;
+            }
+            if (!done) {
+                // Stop expecting the callbacks that did not arrive, and drop the permits of
+                // those that did.
+                mExpectedCallbacks.set(0);
+                mCallbacks.drainPermits();
             }
+            return done;
         }
 
         void configureRegularScanParams() {
             logd("configureRegularScanParams() - queue=" + mRegularScanClients.size());
-            int curScanSetting = Integer.MIN_VALUE;
-            ScanClient client = getAggressiveClient(mRegularScanClients);
-            if (client != null) {
-                curScanSetting = client.settings.getScanMode();
-            }
-
-            logd("configureRegularScanParams() - ScanSetting Scan mode=" + curScanSetting +
-                    " mLastConfiguredScanSetting=" + mLastConfiguredScanSetting);
-
-            if (curScanSetting != Integer.MIN_VALUE) {
-                if (curScanSetting != mLastConfiguredScanSetting) {
-                    int scanWindow, scanInterval;
-                    switch (curScanSetting) {
-                        case ScanSettings.SCAN_MODE_LOW_POWER:
-                            scanWindow = SCAN_MODE_LOW_POWER_WINDOW_MS;
-                            scanInterval = SCAN_MODE_LOW_POWER_INTERVAL_MS;
-                            break;
-                        case ScanSettings.SCAN_MODE_BALANCED:
-                            scanWindow = SCAN_MODE_BALANCED_WINDOW_MS;
-                            scanInterval = SCAN_MODE_BALANCED_INTERVAL_MS;
-                            break;
-                        case ScanSettings.SCAN_MODE_LOW_LATENCY:
-                            scanWindow = SCAN_MODE_LOW_LATENCY_WINDOW_MS;
-                            scanInterval = SCAN_MODE_LOW_LATENCY_INTERVAL_MS;
-                            break;
-                        default:
-                            Log.e(TAG, "Invalid value for curScanSetting " + curScanSetting);
-                            scanWindow = SCAN_MODE_LOW_POWER_WINDOW_MS;
-                            scanInterval = SCAN_MODE_LOW_POWER_INTERVAL_MS;
-                            break;
-                    }
-                    // convert scanWindow and scanInterval from ms to LE scan units(0.625ms)
-                    scanWindow = Utils.millsToUnit(scanWindow);
-                    scanInterval = Utils.millsToUnit(scanInterval);
-                    gattClientScanNative(false);
-                    gattSetScanParametersNative(scanInterval, scanWindow);
-                    gattClientScanNative(true);
-                    mLastConfiguredScanSetting = curScanSetting;
-                }
+            ScanDutyCycle.Params dutyCycle = mScanDutyCycle.getDutyCycle(mRegularScanClients);
+
+            logd("configureRegularScanParams() - duty cycle " + dutyCycle +
+                    " applied " + mScanDutyCycle.getEffectiveDutyCycle());
+
+            if (!mScanDutyCycle.apply(dutyCycle)) {
+                return;
+            }
+            if (dutyCycle != null) {
+                // convert scanWindow and scanInterval from ms to LE scan units(0.625ms)
+                int scanWindow = Utils.millsToUnit(dutyCycle.windowMillis);
+                int scanInterval = Utils.millsToUnit(dutyCycle.intervalMillis);
+                gattClientScanNative(false);
+                gattSetScanParametersNative(scanInterval, scanWindow);
+                gattClientScanNative(true);
             } else {
-                mLastConfiguredScanSetting = curScanSetting;
                 logd("configureRegularScanParams() - queue emtpy, scan stopped");
             }
         }
 
-        ScanClient getAggressiveClient(Set<ScanClient> cList) {
-            ScanClient result = null;
-            int curScanSetting = Integer.MIN_VALUE;
-            for (ScanClient client : cList) {
-                // ScanClient scan settings are assumed to be monotonically increasing in value for
-                // more power hungry(higher duty cycle) operation.
-                if (client.settings.getScanMode() > curScanSetting) {
-                    result = client;
-                    curScanSetting = client.settings.getScanMode();
-                }
-            }
-            return result;
-        }
-
         void startRegularScan(ScanClient client) {
-            if (isFilteringSupported() && mFilterIndexStack.isEmpty() &&
-                    mClientFilterIndexMap.isEmpty()) {
+            if (isFilteringSupported() && !mFilterAllocator.isInitialized()) {
                 initFilterIndexStack();
             }
             if (isFilteringSupported()) {
@@ -466,7 +597,7 @@ public class ScanManager {
         }
 
         void startBatchScan(ScanClient client) {
-            if (mFilterIndexStack.isEmpty() && isFilteringSupported()) {
+            if (!mFilterAllocator.isInitialized() && isFilteringSupported()) {
                 initFilterIndexStack();
             }
             configureScanFilters(client);
@@ -480,9 +611,9 @@ public class ScanManager {
             // Stop batch if batch scan params changed and previous params is not null.
             if (mBatchScanParms != null && (!mBatchScanParms.equals(batchScanParams))) {
                 logd("stopping BLe Batch");
-                resetCountDownLatch();
+                expectCallback();
                 gattClientStopBatchScanNative(clientIf);
-                waitForCallback();
+                waitForCallbacks();
                 // Clear pending results as it's illegal to config storage if there are still
                 // pending results.
                 flushBatchResults(clientIf);
@@ -493,19 +624,18 @@ public class ScanManager {
                 logd("Starting BLE batch scan");
                 int resultType = getResultType(batchScanParams);
                 int fullScanPercent = getFullScanStoragePercent(resultType);
-                resetCountDownLatch();
                 logd("configuring batch scan storage, appIf " + client.clientIf);
+                expectCallback();
                 gattClientConfigBatchScanStorageNative(client.clientIf, fullScanPercent,
                         100 - fullScanPercent, notifyThreshold);
-                waitForCallback();
-                resetCountDownLatch();
                 int scanInterval =
                         Utils.millsToUnit(getBatchScanIntervalMillis(batchScanParams.scanMode));
                 int scanWindow =
                         Utils.millsToUnit(getBatchScanWindowMillis(batchScanParams.scanMode));
+                expectCallback();
                 gattClientStartBatchScanNative(clientIf, resultType, scanInterval,
                         scanWindow, 0, DISCARD_OLDEST_WHEN_BUFFER_FULL);
-                waitForCallback();
+                waitForCallbacks();
             }
             mBatchScanParms = batchScanParams;
             setBatchAlarm();
@@ -590,6 +720,7 @@ public class ScanManager {
             // Remove scan filters and recycle filter indices.
             removeScanFilters(client.clientIf);
             mRegularScanClients.remove(client);
+            mRegularScanIndex.remove(client.clientIf);
             if (mRegularScanClients.isEmpty()) {
                 logd("stop scan");
                 gattClientScanNative(false);
@@ -605,17 +736,16 @@ public class ScanManager {
         void flushBatchResults(int clientIf) {
             logd("flushPendingBatchResults - clientIf = " + clientIf);
             if (mBatchScanParms.fullScanClientIf != -1) {
-                resetCountDownLatch();
+                expectCallback();
                 gattClientReadScanReportsNative(mBatchScanParms.fullScanClientIf,
                         SCAN_RESULT_TYPE_FULL);
-                waitForCallback();
             }
             if (mBatchScanParms.truncatedScanClientIf != -1) {
-                resetCountDownLatch();
+                expectCallback();
                 gattClientReadScanReportsNative(mBatchScanParms.truncatedScanClientIf,
                         SCAN_RESULT_TYPE_TRUNCATED);
-                waitForCallback();
             }
+            waitForCallbacks();
             setBatchAlarm();
         }
 
@@ -649,39 +779,64 @@ public class ScanManager {
                 return;
             }
 
-            resetCountDownLatch();
+            expectCallback();
             gattClientScanFilterEnableNative(clientIf, true);
-            waitForCallback();
 
             if (shouldUseAllPassFilter(client)) {
-                int filterIndex = (deliveryMode == DELIVERY_MODE_BATCH) ?
-                        ALL_PASS_FILTER_INDEX_BATCH_SCAN : ALL_PASS_FILTER_INDEX_REGULAR_SCAN;
-                resetCountDownLatch();
-                configureFilterParamter(clientIf, client, ALL_PASS_FILTER_SELECTION, filterIndex);
-                waitForCallback();
-            } else {
-                Deque<Integer> clientFilterIndices = new ArrayDeque<Integer>();
-                int featureSelection;
-                int filterIndex;
-                for (ScanFilter filter : client.filters) {
-                    ScanFilterQueue queue = new ScanFilterQueue();
-                    if (null != queue) {
-                        queue.addScanFilter(filter);
-                        featureSelection = queue.getFeatureSelection();
-                        filterIndex = mFilterIndexStack.pop();
-                        while (!queue.isEmpty()) {
-                            resetCountDownLatch();
-                            addFilterToController(clientIf, queue.pop(), filterIndex);
-                            waitForCallback();
-                        }
-                        resetCountDownLatch();
-                        configureFilterParamter(clientIf, client, featureSelection, filterIndex);
-                        waitForCallback();
-                        clientFilterIndices.add(filterIndex);
+                configureAllPassFilter(client, deliveryMode);
+                waitForCallbacks();
+                return;
+            }
+
+            // Found and lost events are reported for the client a slot was programmed with, so
+            // only other delivery modes can share slots.
+            boolean shareable = deliveryMode != DELIVERY_MODE_ON_FOUND_LOST;
+            int timeout = getOnfoundLostTimeout(client);
+            Deque<Integer> clientFilterIndices = new ArrayDeque<Integer>();
+            mClientFilterIndexMap.put(clientIf, clientFilterIndices);
+            for (ScanFilter filter : client.filters) {
+                ScanFilterQueue queue = new ScanFilterQueue();
+                queue.addScanFilter(filter);
+                int featureSelection = queue.getFeatureSelection();
+                ScanFilterAllocator.Slot slot = mFilterAllocator.acquire(
+                        new ScanFilterAllocator.Key(queue.getEntries(), deliveryMode, timeout),
+                        shareable);
+                if (slot == null) {
+                    // Out of controller slots, filter on the host instead.
+                    Log.w(TAG, "no filter slot left, using ALL_PASS filter for " + clientIf);
+                    removeScanFilters(clientIf);
+                    Set<Integer> allPassClients = (deliveryMode == DELIVERY_MODE_BATCH) ?
+                            mAllPassBatchClients : mAllPassRegularClients;
+                    allPassClients.add(clientIf);
+                    if (allPassClients.size() == 1) {
+                        configureAllPassFilter(client, deliveryMode);
                     }
+                    waitForCallbacks();
+                    return;
+                }
+                clientFilterIndices.add(slot.filterIndex);
+                if (slot.refCount > 1) {
+                    logd("sharing filter index " + slot.filterIndex + " with clientIf " + clientIf);
+                    continue;
+                }
+                int filterIndex = slot.filterIndex;
+                while (!queue.isEmpty()) {
+                    expectCallback();
+                    addFilterToController(clientIf, queue.pop(), filterIndex);
                 }
-                mClientFilterIndexMap.put(clientIf, clientFilterIndices);
+                expectCallback();
+                configureFilterParamter(clientIf, client, featureSelection, filterIndex);
             }
+            // Wait once for all the filters of the client.
+            waitForCallbacks();
+        }
+
+        private void configureAllPassFilter(ScanClient client, int deliveryMode) {
+            int filterIndex = (deliveryMode == DELIVERY_MODE_BATCH) ?
+                    ALL_PASS_FILTER_INDEX_BATCH_SCAN : ALL_PASS_FILTER_INDEX_REGULAR_SCAN;
+            expectCallback();
+            configureFilterParamter(client.clientIf, client, ALL_PASS_FILTER_SELECTION,
+                    filterIndex);
         }
 
         // Check whether the filter should be added to controller.
@@ -704,11 +859,13 @@ public class ScanManager {
         private void removeScanFilters(int clientIf) {
             Deque<Integer> filterIndices = mClientFilterIndexMap.remove(clientIf);
             if (filterIndices != null) {
-                mFilterIndexStack.addAll(filterIndices);
                 for (Integer filterIndex : filterIndices) {
-                    resetCountDownLatch();
+                    // Shared slots stay in the controller until their last user is gone.
+                    if (!mFilterAllocator.release(filterIndex)) {
+                        continue;
+                    }
+                    expectCallback();
                     gattClientScanFilterParamDeleteNative(clientIf, filterIndex);
-                    waitForCallback();
                 }
             }
             // Remove if ALL_PASS filters are used.
@@ -716,6 +873,7 @@ public class ScanManager {
                     ALL_PASS_FILTER_INDEX_REGULAR_SCAN);
             removeFilterIfExisits(mAllPassBatchClients, clientIf,
                     ALL_PASS_FILTER_INDEX_BATCH_SCAN);
+            waitForCallbacks();
         }
 
         private void removeFilterIfExisits(Set<Integer> clients, int clientIf, int filterIndex) {
@@ -725,9 +883,8 @@ public class ScanManager {
             clients.remove(clientIf);
             // Remove ALL_PASS filter iff no app is using it.
             if (clients.isEmpty()) {
-                resetCountDownLatch();
+                expectCallback();
                 gattClientScanFilterParamDeleteNative(clientIf, filterIndex);
-                waitForCallback();
             }
         }
 
@@ -820,9 +977,7 @@ public class ScanManager {
                 // index 0 is reserved for ALL_PASS filter in Settings app.
                 // index 1 is reserved for ALL_PASS filter for regular scan apps.
                 // index 2 is reserved for ALL_PASS filter for batch scan apps.
-                for (int i = 3; i < maxFiltersSupported; ++i) {
-                    mFilterIndexStack.add(i);
-                }
+                mFilterAllocator.init(3, maxFiltersSupported);
             }
         }
 
@@ -851,8 +1006,8 @@ public class ScanManager {
                     || (settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_MATCH_LOST) != 0) {
                 return DELIVERY_MODE_ON_FOUND_LOST;
             }
-            return settings.getReportDelayMillis() == 0 ? DELIVERY_MODE_IMMEDIATE
-                    : DELIVERY_MODE_BATCH;
+            return settings.getReportDelayMillis() == 0 || client.softwareBatch
+                    ? DELIVERY_MODE_IMMEDIATE : DELIVERY_MODE_BATCH;
         }
 
         // Get onfound and onlost timeouts in ms
@@ -918,6 +1073,24 @@ public class ScanManager {
         private native void gattClientReadScanReportsNative(int client_if, int scan_type);
     }
 
+    /**
+     * Returns the duty cycle the controller currently runs regular scans with, or null if regular
+     * scan is stopped.
+     */
+    ScanDutyCycle.Params getEffectiveDutyCycle() {
+        return mScanDutyCycle.getEffectiveDutyCycle();
+    }
+
+    /**
+     * Logs debug information.
+     */
+    void dump(StringBuilder sb) {
+        sb.append("  Regular scan clients: " + mRegularScanClients.size() + "\n");
+        sb.append("  Batch scan clients: " + mBatchClients.size() + "\n");
+        mScanDutyCycle.dump(sb);
+        mFilterAllocator.dump(sb);
+    }
+
     private void logd(String s) {
         if (DBG) Log.d(TAG, s);
     }
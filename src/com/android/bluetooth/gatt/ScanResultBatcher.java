@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanResult;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accumulates scan results per client for batch scans the controller cannot
+ * offload. The {@link ScanManager} decides when a batch is due, either when
+ * the report delay of the client expires or when the batch is full.
+ *
+ * @hide
+ */
+/* package */class ScanResultBatcher {
+    static final int DEFAULT_MAX_RESULTS = 100;
+
+    private final int mMaxResults;
+    // Pending results, keyed by clientIf.
+    private final SparseArray<List<ScanResult>> mPending = new SparseArray<List<ScanResult>>();
+
+    ScanResultBatcher() {
+        this(DEFAULT_MAX_RESULTS);
+    }
+
+    ScanResultBatcher(int maxResults) {
+        mMaxResults = maxResults;
+    }
+
+    int getMaxResults() {
+        return mMaxResults;
+    }
+
+    /**
+     * Add a result to the pending batch of a client.
+     *
+     * @return the number of pending results of the client, including this one.
+     */
+    synchronized int add(int clientIf, ScanResult result) {
+        List<ScanResult> results = mPending.get(clientIf);
+        if (results == null) {
+            results = new ArrayList<ScanResult>();
+            mPending.put(clientIf, results);
+        }
+        results.add(result);
+        return results.size();
+    }
+
+    /**
+     * Remove and return the pending batch of a client, or null if there is none.
+     */
+    synchronized List<ScanResult> drain(int clientIf) {
+        List<ScanResult> results = mPending.get(clientIf);
+        mPending.remove(clientIf);
+        return results;
+    }
+
+    synchronized void remove(int clientIf) {
+        mPending.remove(clientIf);
+    }
+
+    synchronized void clear() {
+        mPending.clear();
+    }
+}
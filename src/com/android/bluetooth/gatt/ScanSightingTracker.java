@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanResult;
+import android.util.SparseArray;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the devices found by each first match / match lost scan
+ * client, so that a device is only reported once until it is lost.
+ *
+ * Sightings are kept per client in least recently seen order. A sighting is
+ * dropped once it has not been refreshed for the configured time to live, or
+ * when the client exceeds its maximum number of sightings, in which case the
+ * least recently seen device is dropped first. A dropped device is reported
+ * as found again on its next sighting.
+ *
+ * @hide
+ */
+/* package */class ScanSightingTracker {
+    static final int DEFAULT_MAX_SIGHTINGS_PER_CLIENT = 1024;
+    static final long DEFAULT_SIGHTING_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final int mMaxSightingsPerClient;
+    private final long mSightingTtlNanos;
+
+    // Sightings of each client, keyed by clientIf.
+    private final SparseArray<Sightings> mClients = new SparseArray<Sightings>();
+
+    private int mEvictedCount;
+
+    ScanSightingTracker() {
+        this(DEFAULT_MAX_SIGHTINGS_PER_CLIENT, DEFAULT_SIGHTING_TTL_MILLIS);
+    }
+
+    ScanSightingTracker(int maxSightingsPerClient) {
+        this(maxSightingsPerClient, DEFAULT_SIGHTING_TTL_MILLIS);
+    }
+
+    ScanSightingTracker(int maxSightingsPerClient, long sightingTtlMillis) {
+        mMaxSightingsPerClient = maxSightingsPerClient;
+        mSightingTtlNanos = TimeUnit.MILLISECONDS.toNanos(sightingTtlMillis);
+    }
+
+    /**
+     * Record a sighting of the device in {@code result} for {@code clientIf}.
+     *
+     * @return true if the device was not already tracked for the client, i.e.
+     *         the client has to be notified that the device is found.
+     */
+    synchronized boolean onSighting(int clientIf, ScanResult result) {
+        Sightings sightings = mClients.get(clientIf);
+        if (sightings == null) {
+            sightings = new Sightings();
+            mClients.put(clientIf, sightings);
+        }
+        evictExpired(sightings, result.getTimestampNanos());
+        return sightings.put(result.getDevice().getAddress(), result) == null;
+    }
+
+    /**
+     * Stop tracking a device for a client.
+     *
+     * @return the last result of the device, or null if it was not tracked.
+     */
+    synchronized ScanResult onLost(int clientIf, String address) {
+        Sightings sightings = mClients.get(clientIf);
+        if (sightings == null) return null;
+        return sightings.remove(address);
+    }
+
+    synchronized void removeClient(int clientIf) {
+        mClients.remove(clientIf);
+    }
+
+    synchronized void clear() {
+        mClients.clear();
+    }
+
+    /**
+     * Logs debug information.
+     */
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Max sightings per client: " + mMaxSightingsPerClient + "\n");
+        sb.append("  Evicted sightings: " + mEvictedCount + "\n");
+        for (int i = 0; i < mClients.size(); i++) {
+            Sightings sightings = mClients.valueAt(i);
+            sb.append("  Client " + mClients.keyAt(i) + ": " + sightings.size()
+                    + " devices\n");
+            for (ScanResult result : sightings.values()) {
+                sb.append("    " + result + "\n");
+            }
+        }
+    }
+
+    // The least recently seen devices are at the head of the map.
+    private void evictExpired(Sightings sightings, long nowNanos) {
+        for (Iterator<ScanResult> it = sightings.values().iterator(); it.hasNext();) {
+            if (nowNanos - it.next().getTimestampNanos() < mSightingTtlNanos) break;
+            it.remove();
+            mEvictedCount++;
+        }
+    }
+
+    private class Sightings extends LinkedHashMap<String, ScanResult> {
+        Sightings() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ScanResult> eldest) {
+            if (size() > mMaxSightingsPerClient) {
+                mEvictedCount++;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -16,13 +16,17 @@
 
 package com.android.bluetooth.gatt;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
 
 /**
  * Helper class to store characteristics and descriptors that will be
  * queued up for future exploration.
+ *
+ * Entries are partitioned by connection, so the discovery of one device
+ * never waits behind the entries of another and a disconnection drops its
+ * partition at once.
  * @hide
  */
 /*package*/ class SearchQueue {
@@ -37,7 +41,8 @@ import java.util.List;
         public long charUuidMsb;
     }
 
-    private List<Entry> mEntries = new ArrayList<Entry>();
+    // Pending entries, keyed by connId.
+    private final SparseArray<ArrayDeque<Entry>> mEntries = new SparseArray<ArrayDeque<Entry>>();
 
     void add(int connId, int srvcType,
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb) {
@@ -48,7 +53,7 @@ import java.util.List;
         entry.srvcUuidLsb = srvcUuidLsb;
         entry.srvcUuidMsb = srvcUuidMsb;
         entry.charUuidLsb = 0;
-        mEntries.add(entry);
+        getPartition(connId).add(entry);
     }
 
     void add(int connId, int srvcType,
@@ -64,29 +69,40 @@ import java.util.List;
         entry.charInstId = charInstId;
         entry.charUuidLsb = charUuidLsb;
         entry.charUuidMsb = charUuidMsb;
-        mEntries.add(entry);
+        getPartition(connId).add(entry);
     }
 
-    Entry pop() {
-        Entry entry = mEntries.get(0);
-        mEntries.remove(0);
+    /**
+     * Remove and return the next entry of a connection, or null if there is none.
+     */
+    Entry pop(int connId) {
+        ArrayDeque<Entry> entries = mEntries.get(connId);
+        if (entries == null) return null;
+        Entry entry = entries.poll();
+        if (entries.isEmpty()) {
+            mEntries.remove(connId);
+        }
         return entry;
     }
 
     void removeConnId(int connId) {
-        for (Iterator<Entry> it = mEntries.iterator(); it.hasNext();) {
-            Entry entry = it.next();
-            if (entry.connId == connId) {
-                it.remove();
-            }
-        }
+        mEntries.remove(connId);
     }
 
     boolean isEmpty() {
-        return mEntries.isEmpty();
+        return mEntries.size() == 0;
     }
 
     void clear() {
         mEntries.clear();
     }
+
+    private ArrayDeque<Entry> getPartition(int connId) {
+        ArrayDeque<Entry> entries = mEntries.get(connId);
+        if (entries == null) {
+            entries = new ArrayDeque<Entry>();
+            mEntries.put(connId, entries);
+        }
+        return entries;
+    }
 }
@@ -0,0 +1,209 @@
+/*
+* Copyright (C) 2014 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.android.bluetooth.map;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.PhoneLookup;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.MmsSms;
+import android.provider.Telephony.Threads;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+/**
+ * Caches the contact names and message addresses looked up while building
+ * message listings, for the lifetime of one MAS session.
+ *
+ * A listing looks up the same senders and recipients over and over, and
+ * every MMS used to be queried once per address field. The addresses of a
+ * MMS are now read in a single query, and the canonical addresses of the
+ * thread recipients in one IN query. Names are flushed when the contacts
+ * change and addresses when the SMS/MMS database changes.
+ */
+public class BluetoothMapAddressCache {
+    private static final String TAG = "BluetoothMapAddressCache";
+    private static final boolean V = Log.isLoggable(BluetoothMapService.LOG_TAG, Log.VERBOSE);
+
+    private static final int MAX_NAMES = 256;
+    private static final int MAX_MESSAGES = 256;
+    private static final int MAX_THREADS = 64;
+
+    private static final Uri CANONICAL_ADDRESSES_URI =
+            Uri.parse("content://mms-sms/canonical-addresses");
+    private static final Uri SIMPLE_THREADS_URI =
+            Threads.CONTENT_URI.buildUpon().appendQueryParameter("simple", "true").build();
+
+    private final ContentResolver mResolver;
+
+    // Phone number to display name, "" if the number is not a contact.
+    private final LruCache<String, String> mNames = new LruCache<String, String>(MAX_NAMES);
+    // MMS id to its first address of each address type.
+    private final LruCache<Long, SparseArray<String>> mMmsAddresses =
+            new LruCache<Long, SparseArray<String>>(MAX_MESSAGES);
+    // Thread id to the addresses of its recipients, separated by ";".
+    private final LruCache<Integer, String> mThreadRecipients =
+            new LruCache<Integer, String>(MAX_THREADS);
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (V) Log.v(TAG, "Contacts changed, flushing names");
+            mNames.evictAll();
+        }
+    };
+
+    private final ContentObserver mMessagesObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (V) Log.v(TAG, "Messages changed, flushing addresses");
+            mMmsAddresses.evictAll();
+            mThreadRecipients.evictAll();
+        }
+    };
+
+    public BluetoothMapAddressCache(ContentResolver resolver) {
+        mResolver = resolver;
+        mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                mContactsObserver);
+        mResolver.registerContentObserver(MmsSms.CONTENT_URI, true, mMessagesObserver);
+    }
+
+    /**
+     * Stop following the changes and drop the cached entries, at the end of the session.
+     */
+    public void close() {
+        mResolver.unregisterContentObserver(mContactsObserver);
+        mResolver.unregisterContentObserver(mMessagesObserver);
+        mNames.evictAll();
+        mMmsAddresses.evictAll();
+        mThreadRecipients.evictAll();
+    }
+
+    /**
+     * Get the display name of the contact with a phone number.
+     * @return the name, or "" if the number does not belong to a visible contact
+     */
+    public String getContactName(String phone) {
+        if (TextUtils.isEmpty(phone)) {
+            return "";
+        }
+        String name = mNames.get(phone);
+        if (name != null) {
+            return name;
+        }
+
+        name = "";
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(phone));
+        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
+        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
+        String orderBy = Contacts.DISPLAY_NAME + " ASC";
+        Cursor c = mResolver.query(uri, projection, selection, null, orderBy);
+        if (c != null) {
+            try {
+                if (c.moveToFirst()) {
+                    name = c.getString(c.getColumnIndex(Contacts.DISPLAY_NAME));
+                    if (name == null) name = "";
+                }
+            } finally {
+                c.close();
+            }
+        }
+        mNames.put(phone, name);
+        return name;
+    }
+
+    /**
+     * Get the first address of a type of a MMS.
+     * @param type the address type, e.g. {@link BluetoothMapContent#MMS_FROM}
+     * @return the address, or null if the MMS has none of that type
+     */
+    public String getMmsAddress(long id, int type) {
+        SparseArray<String> addresses = mMmsAddresses.get(id);
+        if (addresses == null) {
+            addresses = new SparseArray<String>();
+            Uri uri = Uri.parse(String.format("content://mms/%d/addr", id));
+            Cursor c = mResolver.query(uri, new String[] {Mms.Addr.ADDRESS, Mms.Addr.TYPE},
+                    "msg_id=" + id, null, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        int addrType = c.getInt(1);
+                        if (addresses.get(addrType) == null) {
+                            addresses.put(addrType, c.getString(0));
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            mMmsAddresses.put(id, addresses);
+        }
+        return addresses.get(type);
+    }
+
+    /**
+     * Get the addresses of the recipients of a thread, separated by ";".
+     * @return the addresses, or "" if the thread is unknown
+     */
+    public String getThreadRecipients(int threadId) {
+        String recipients = mThreadRecipients.get(threadId);
+        if (recipients != null) {
+            return recipients;
+        }
+
+        String recipientIds = null;
+        Cursor c = mResolver.query(SIMPLE_THREADS_URI, new String[] {"recipient_ids"},
+                "_id=" + threadId, null, null);
+        if (c != null) {
+            try {
+                if (c.moveToFirst()) {
+                    recipientIds = c.getString(0);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        if (V) Log.v(TAG, "Thread " + threadId + " recipient ids: " + recipientIds);
+
+        StringBuilder addresses = new StringBuilder();
+        if (recipientIds != null && recipientIds.trim().length() > 0) {
+            String where = "_id IN (" + recipientIds.trim().replaceAll(" +", ",") + ")";
+            c = mResolver.query(CANONICAL_ADDRESSES_URI, new String[] {"address"}, where,
+                    null, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        //TODO: Multiple Recipeints are appended with ";" for now.
+                        if (addresses.length() != 0) addresses.append(';');
+                        addresses.append(c.getString(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+        }
+        recipients = addresses.toString();
+        mThreadRecipients.put(threadId, recipients);
+        return recipients;
+    }
+}
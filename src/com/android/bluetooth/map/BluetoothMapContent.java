@@ -39,7 +39,6 @@ import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Sms;
-import android.provider.Telephony.Threads;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.text.TextUtils;
@@ -141,6 +140,7 @@ public class BluetoothMapContent {
 
     private Context mContext;
     private ContentResolver mResolver;
+    private final BluetoothMapAddressCache mAddressCache;
     private static final String[] ACCOUNT_ID_PROJECTION = new String[] {
                          RECORD_ID, EMAIL_ADDRESS, IS_DEFAULT
     };
@@ -207,6 +207,14 @@ public class BluetoothMapContent {
         if (mResolver == null) {
             Log.e(TAG, "getContentResolver failed");
         }
+        mAddressCache = new BluetoothMapAddressCache(mResolver);
+    }
+
+    /**
+     * Release the resources of the session, the content can't be used afterwards.
+     */
+    public void close() {
+        mAddressCache.close();
     }
 
     private void addSmsEntry() {
@@ -423,60 +431,8 @@ public class BluetoothMapContent {
      *
     */
     private String getMessageSmsRecipientAddress(int threadId){
-       String [] RECIPIENT_ID_PROJECTION = { "recipient_ids" };
-        /*
-         1. Get Recipient Ids from Threads.CONTENT_URI
-         2. Get Recipient Address for corresponding Id from canonical-addresses table.
-        */
-
-        Uri sAllCanonical = Uri.parse("content://mms-sms/canonical-addresses");
-        Uri sAllThreadsUri =  Threads.CONTENT_URI.buildUpon().appendQueryParameter("simple", "true").build();
-        Cursor cr = null;
-        String recipientAddress= "";
-        String recipientIds = null;
-        String whereClause = "_id="+threadId;
-        if (V) Log.v(TAG, "whereClause is "+ whereClause);
-        cr = mContext.getContentResolver().query(sAllThreadsUri, RECIPIENT_ID_PROJECTION, whereClause, null,
-                null);
-        if (cr != null && cr.moveToFirst()) {
-            recipientIds = cr.getString(0);
-            if (V) Log.v(TAG, "cursor.getCount(): " + cr.getCount() + "recipientIds: "+ recipientIds +"whrClus: "+ whereClause );
-        }
-        if(cr != null){
-            cr.close();
-            cr = null;
-        }
-
-        if (V) Log.v(TAG, "recipientIds with spaces: "+ recipientIds +"\n");
-
-        if(recipientIds != null) {
-           String recipients[] = null;
-           whereClause = "";
-           recipients = recipientIds.split(" ");
-           for (String id: recipients) {
-                if(whereClause.length() != 0)
-                   whereClause +=" OR ";
-                whereClause +="_id="+id;
-           }
-           if (V) Log.v(TAG, "whereClause is "+ whereClause);
-           cr = mContext.getContentResolver().query(sAllCanonical , null, whereClause, null, null);
-           if (cr != null && cr.moveToFirst()) {
-              do {
-                //TODO: Multiple Recipeints are appended with ";" for now.
-                if(recipientAddress.length() != 0 )
-                   recipientAddress+=";";
-                recipientAddress+=cr.getString(cr.getColumnIndex("address"));
-              } while(cr.moveToNext());
-           }
-           if(cr != null)
-              cr.close();
-
-        }
-
-        if(V) Log.v(TAG,"Final recipientAddress : "+ recipientAddress);
-        return recipientAddress;
-
-     }
+        return mAddressCache.getThreadRecipients(threadId);
+    }
 
     public void dumpMessages() {
         dumpSmsTable();
@@ -788,7 +744,7 @@ public class BluetoothMapContent {
                 }
             } else if (fi.msgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                address = getAddressMms(mResolver, id, MMS_TO);
+                address = mAddressCache.getMmsAddress(id, MMS_TO);
             } else {
                 int toIndex = c.getColumnIndex(MessageColumns.TO_LIST);
                 address = c.getString(toIndex);
@@ -842,7 +798,7 @@ public class BluetoothMapContent {
 
             } else if (fi.msgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                String phone = getAddressMms(mResolver, id, MMS_TO);
+                String phone = mAddressCache.getMmsAddress(id, MMS_TO);
                 name = getContactNameFromPhone(phone);
             } else {
                 int toIndex = c.getColumnIndex(MessageColumns.TO_LIST);
@@ -883,7 +839,7 @@ public class BluetoothMapContent {
                 }
             } else if (fi.msgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                address = getAddressMms(mResolver, id, MMS_FROM);
+                address = mAddressCache.getMmsAddress(id, MMS_FROM);
             } else {
                 int fromIndex = c.getColumnIndex(MessageColumns.FROM_LIST);
                 address = c.getString(fromIndex);
@@ -928,7 +884,7 @@ public class BluetoothMapContent {
                 }
             } else if (fi.msgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                String phone = getAddressMms(mResolver, id, MMS_FROM);
+                String phone = mAddressCache.getMmsAddress(id, MMS_FROM);
                 name = getContactNameFromPhone(phone);
             } else { //email case
                 int displayNameIndex = c.getColumnIndex(MessageColumns.DISPLAY_NAME);
@@ -1108,27 +1064,7 @@ public class BluetoothMapContent {
     }
 
     private String getContactNameFromPhone(String phone) {
-        String name = "";
-        if (TextUtils.isEmpty(phone)) {
-           return name;
-        }
-        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-            Uri.encode(phone));
-
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
-        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
-        String orderBy = Contacts.DISPLAY_NAME + " ASC";
-
-        Cursor c = mResolver.query(uri, projection, selection, null, orderBy);
-        try {
-            if (c != null && c.getCount() >= 1) {
-                c.moveToFirst();
-                name = c.getString(c.getColumnIndex(Contacts.DISPLAY_NAME));
-            };
-        } finally {
-            close(c);
-        }
-        return name;
+        return mAddressCache.getContactName(phone);
     }
 
     static public String getAddressMms(ContentResolver r, long id, int type) {
@@ -1168,7 +1104,7 @@ public class BluetoothMapContent {
     private boolean matchRecipientMms(Cursor c, FilterInfo fi, String recip) {
         boolean res;
         long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-        String phone = getAddressMms(mResolver, id, MMS_TO);
+        String phone = mAddressCache.getMmsAddress(id, MMS_TO);
         if (phone != null && phone.length() > 0) {
             if (phone.matches(recip)) {
                 if (D) Log.d(TAG, "match recipient phone = " + phone);
@@ -1273,7 +1209,7 @@ public class BluetoothMapContent {
     private boolean matchOriginatorMms(Cursor c, FilterInfo fi, String orig) {
         boolean res;
         long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-        String phone = getAddressMms(mResolver, id, MMS_FROM);
+        String phone = mAddressCache.getMmsAddress(id, MMS_FROM);
         if (phone != null && phone.length() > 0) {
             if (phone.matches(orig)) {
                 if (D) Log.d(TAG, "match originator phone = " + phone);
@@ -1523,32 +1459,18 @@ public class BluetoothMapContent {
         String where = "";
         str = str.replace("*", "%");
 
-        Cursor c = mResolver.query(ContactsContract.Contacts.CONTENT_URI, null,
-            ContactsContract.Contacts.DISPLAY_NAME + " like ?",
+        /* The phone numbers of all the matching contacts, in a single query */
+        Cursor c = mResolver.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
+            new String[] {ContactsContract.CommonDataKinds.Phone.NUMBER},
+            ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME + " like ?",
             new String[]{str},
-            ContactsContract.Contacts.DISPLAY_NAME + " ASC");
+            ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME + " ASC");
 
         try {
             while (c != null && c.moveToNext()) {
-                String contactId = c.getString(c.getColumnIndex(ContactsContract.Contacts._ID));
-
-                Cursor p = mResolver.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI, null,
-                    ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " = ?",
-                    new String[]{contactId},
-                    null);
-
-                try {
-                    while (p != null && p.moveToNext()) {
-                        String number = p.getString(
-                            p.getColumnIndex(ContactsContract.CommonDataKinds.Phone.NUMBER));
-
-                        where += " address = " + "'" + number + "'";
-                        if (!p.isLast()) where += " OR ";
-                    }
-                } finally {
-                    close(p);
-                }
+                String number = c.getString(0);
 
+                where += " address = " + "'" + number + "'";
                 if (!c.isLast()) where += " OR ";
             }
         } finally {
@@ -2229,7 +2151,11 @@ public class BluetoothMapContent {
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
 
-        if (emailSelected(fi, ap)) {
+        /* Email has no high priority messages, nothing to list if only those are asked */
+        boolean priorityMatches = (ap.getFilterPriority() == 0)
+                || (ap.getFilterPriority() == 0x02) || (ap.getFilterPriority() == -1);
+
+        if (emailSelected(fi, ap) && priorityMatches) {
             fi.msgType = FilterInfo.TYPE_EMAIL;
 
             String where = setWhereFilter(folder, fi, ap);
@@ -2253,8 +2179,7 @@ public class BluetoothMapContent {
 
                 if (c != null) {
                     while (c.moveToNext()) {
-                        if (matchAddresses(c, fi, ap) && ((ap.getFilterPriority() == 0) ||
-                            (ap.getFilterPriority() == 0x02) || (ap.getFilterPriority() == -1))) {
+                        if (matchAddresses(c, fi, ap)) {
                             printEmail(c);
                             e = element(c, fi, ap);
                             bmList.add(e);
@@ -2267,10 +2192,7 @@ public class BluetoothMapContent {
             }
         }
 
-        /* Enable this if post sorting and segmenting needed */
-        bmList.sort();
-        //Handle OFFSET and MAXLISTCOUNT from DB query
-//        bmList.segment(ap.getMaxListCount(), ap.getStartOffset());
+        /* The query sorts by timestamp and applies OFFSET and MAXLISTCOUNT */
 
         return bmList;
     }
@@ -2334,6 +2256,39 @@ public class BluetoothMapContent {
         return (cnt>0)?true:false;
     }
 
+    /**
+     * Returns true if the listing is filtered on originator or recipient, which is
+     * matched on the rows read rather than in the query.
+     */
+    private boolean hasAddressFilter(BluetoothMapAppParams ap) {
+        String orig = ap.getFilterOriginator();
+        String recip = ap.getFilterRecipient();
+        return (orig != null && orig.length() > 0) || (recip != null && recip.length() > 0);
+    }
+
+    private boolean isUnread(Cursor c, FilterInfo fi) {
+        String column = (fi.msgType == FilterInfo.TYPE_EMAIL) ? MessageColumns.FLAG_READ
+                : Sms.READ;
+        return c.getInt(c.getColumnIndex(column)) != 1;
+    }
+
+    /**
+     * Return true if a message matching where is unread, without reading the messages.
+     * @param where the filter of the listing, or null if the type is not listed
+     */
+    private boolean hasUnreadRow(Uri uri, String where, String readColumn) {
+        if (where == null) {
+            return false;
+        }
+        Cursor c = mResolver.query(uri, new String[] {BaseColumns._ID},
+                where + " AND " + readColumn + "=0", null, "date DESC LIMIT 1");
+        try {
+            return c != null && c.getCount() > 0;
+        } finally {
+            close(c);
+        }
+    }
+
     public BluetoothMapMessageListing msgListing(String folder, BluetoothMapAppParams ap) {
         Log.d(TAG, "msgListing: folder = " + folder);
         BluetoothMapMessageListing bmList = new BluetoothMapMessageListing();
@@ -2351,51 +2306,86 @@ public class BluetoothMapContent {
         /* Cache some info used throughout filtering */
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
-        if (smsSelected(fi, ap)) {
-            fi.msgType = FilterInfo.TYPE_SMS;
-            if(ap.getFilterPriority() != 1){ /*SMS cannot have high priority*/
-                String where = setWhereFilter(folder, fi, ap);
 
-                Cursor c = mResolver.query(Sms.CONTENT_URI,
-                    SMS_PROJECTION, where, null, "date DESC");
+        /* Only the messages up to the end of the requested page are needed, unless they
+         * are filtered on their addresses, which can only be matched once read. */
+        int offset = ap.getStartOffset();
+        int count = ap.getMaxListCount();
+        String limit = hasAddressFilter(ap) ? "" : " LIMIT " + (offset + count);
 
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        if (matchAddresses(c, fi, ap)) {
-                            printSms(c);
-                            e = element(c, fi, ap);
-                            bmList.add(e);
-                        }
-                    }
-                    c.close();
+        Cursor smsCursor = null;
+        Cursor mmsCursor = null;
+        String smsWhere = null;
+        String mmsWhere = null;
+        try {
+            if (smsSelected(fi, ap)) {
+                fi.msgType = FilterInfo.TYPE_SMS;
+                if(ap.getFilterPriority() != 1){ /*SMS cannot have high priority*/
+                    smsWhere = setWhereFilter(folder, fi, ap);
+                    smsCursor = mResolver.query(Sms.CONTENT_URI,
+                        SMS_PROJECTION, smsWhere, null, "date DESC" + limit);
                 }
             }
-        }
-
-        if (mmsSelected(fi, ap)) {
-            fi.msgType = FilterInfo.TYPE_MMS;
 
-            String where = setWhereFilter(folder, fi, ap);
-            where += " AND " + INTERESTED_MESSAGE_TYPE_CLAUSE;
-            Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, "date DESC");
+            if (mmsSelected(fi, ap)) {
+                fi.msgType = FilterInfo.TYPE_MMS;
+                mmsWhere = setWhereFilter(folder, fi, ap);
+                mmsWhere += " AND " + INTERESTED_MESSAGE_TYPE_CLAUSE;
+                mmsCursor = mResolver.query(Mms.CONTENT_URI,
+                    MMS_PROJECTION, mmsWhere, null, "date DESC" + limit);
+            }
+
+            /* Merge both cursors newest first, and only build the elements of the
+             * requested page. SMS dates are in milliseconds, MMS dates in seconds. */
+            boolean hasSms = smsCursor != null && smsCursor.moveToFirst();
+            boolean hasMms = mmsCursor != null && mmsCursor.moveToFirst();
+            int smsDateInd = hasSms ? smsCursor.getColumnIndex(Sms.DATE) : -1;
+            int mmsDateInd = hasMms ? mmsCursor.getColumnIndex(Mms.DATE) : -1;
+            boolean hasUnread = false;
+            int matched = 0;
+            while ((hasSms || hasMms) && (matched < offset + count || !hasUnread)) {
+                Cursor c;
+                if (hasSms && (!hasMms || smsCursor.getLong(smsDateInd)
+                        >= mmsCursor.getLong(mmsDateInd) * 1000L)) {
+                    c = smsCursor;
+                    fi.msgType = FilterInfo.TYPE_SMS;
+                } else {
+                    c = mmsCursor;
+                    fi.msgType = FilterInfo.TYPE_MMS;
+                }
 
-            if (c != null) {
-                int cnt = 0;
-                while (c.moveToNext()) {
-                    if (matchAddresses(c, fi, ap)) {
-                        printMms(c);
+                /* Past the page, messages are only looked at to find an unread one */
+                if ((matched < offset + count || isUnread(c, fi)) && matchAddresses(c, fi, ap)) {
+                    if (matched >= offset && matched < offset + count) {
+                        if (fi.msgType == FilterInfo.TYPE_SMS) {
+                            printSms(c);
+                        } else {
+                            printMms(c);
+                        }
                         e = element(c, fi, ap);
                         bmList.add(e);
                     }
+                    hasUnread |= isUnread(c, fi);
+                    matched++;
+                }
+
+                if (c == smsCursor) {
+                    hasSms = smsCursor.moveToNext();
+                } else {
+                    hasMms = mmsCursor.moveToNext();
                 }
-                c.close();
             }
-        }
 
-        /* Enable this if post sorting and segmenting needed */
-        bmList.sort();
-        bmList.segment(ap.getMaxListCount(), ap.getStartOffset());
+            /* The rows past the LIMIT were not read, ask the providers directly. */
+            if (!hasUnread && limit.length() > 0) {
+                hasUnread = hasUnreadRow(Sms.CONTENT_URI, smsWhere, Sms.READ)
+                        || hasUnreadRow(Mms.CONTENT_URI, mmsWhere, Mms.READ);
+            }
+            bmList.setHasUnread(hasUnread);
+        } finally {
+            close(smsCursor);
+            close(mmsCursor);
+        }
 
         return bmList;
     }
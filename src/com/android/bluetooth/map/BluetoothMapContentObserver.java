@@ -46,6 +46,7 @@ import android.content.IntentFilter;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.text.TextUtils;
 import android.text.format.Time;
 import android.os.Handler;
 import android.provider.BaseColumns;
@@ -122,6 +123,33 @@ public class BluetoothMapContentObserver {
         Mms.STATUS,
     };
 
+    private static final String[] SMS_LIST_PROJECTION = new String[] {
+        BaseColumns._ID,
+        Sms.TYPE,
+    };
+
+    private static final String[] MMS_LIST_PROJECTION = new String[] {
+        BaseColumns._ID,
+        Mms.MESSAGE_BOX,
+        Mms.MESSAGE_TYPE,
+    };
+
+    private static final String[] COUNT_PROJECTION = new String[] {
+        "count(*)",
+    };
+
+    /* A provider write is notified on several Uris, the notifications arriving within this
+     * delay are handled together. */
+    private static final long CHANGES_DELAY_MS = 100;
+
+    /* All messages are compared against the message lists this long after the message list
+     * changed, to catch changes that neither the notified Uri nor the incremental queries
+     * reveal. Nothing is compared while the messages do not change. */
+    private static final long FULL_SYNC_INTERVAL_MS = 5 * 60 * 1000;
+
+    private static final int MSG_HANDLE_CHANGES = 1;
+    private static final int MSG_FULL_SYNC = 2;
+
     public BluetoothMapContentObserver(final Context context) {
         mContext = context;
         mResolver = mContext.getContentResolver();
@@ -154,7 +182,21 @@ public class BluetoothMapContentObserver {
                 Log.d(TAG, "onChange on thread: " + Thread.currentThread().getId()
                    + " Uri: " + uri.toString() + " selfchange: " + selfChange);
 
-            handleMsgListChanges();
+            onMsgListChanged(uri);
+        }
+    };
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_HANDLE_CHANGES:
+                    handleMsgListChanges();
+                    break;
+                case MSG_FULL_SYNC:
+                    fullSyncMsgList();
+                    break;
+            }
         }
     };
 
@@ -251,12 +293,36 @@ public class BluetoothMapContentObserver {
         }
     }
 
-    private Map<Long, Msg> mMsgListSms =
+    private final Map<Long, Msg> mMsgListSms =
         Collections.synchronizedMap(new HashMap<Long, Msg>());
 
-    private Map<Long, Msg> mMsgListMms =
+    private final Map<Long, Msg> mMsgListMms =
         Collections.synchronizedMap(new HashMap<Long, Msg>());
 
+    /*
+     * The message lists are kept up to date incrementally. Notifications for
+     * single messages only read those messages. Any other notification reads
+     * the messages above the highest known _id, the notified ones and the ones
+     * still waiting to be sent, once for all the notifications of a write.
+     * The row count of the table then tells whether something else was deleted.
+     * The fields below are guarded by the lock of their message list.
+     */
+    private long mSmsMaxId = -1;
+    private long mMmsMaxId = -1;
+    private int mSmsCount;
+    private int mMmsCount;
+    /* Messages deleted on a single message notification, since the last row count */
+    private int mSmsDeleted;
+    private int mMmsDeleted;
+    /* MMS notification indications, which are not reported until retrieved */
+    private final Set<Long> mMmsIgnored = new HashSet<Long>();
+
+    /* Messages notified since the changes were last handled, and whether a notification did
+     * not tell which message changed. Guarded by mChangedSms. */
+    private final Set<Long> mChangedSms = new HashSet<Long>();
+    private final Set<Long> mChangedMms = new HashSet<Long>();
+    private boolean mMsgListChanged;
+
     /*
      * Class to hold message handle for MCE Initiated operation
      */
@@ -331,12 +397,22 @@ public class BluetoothMapContentObserver {
         mMasId = masId;
         mMnsClient = mns;
         mResolver.registerContentObserver(MmsSms.CONTENT_URI, false, mObserver);
+        /* The message Uris tell which message changed, when the provider notifies them */
+        mResolver.registerContentObserver(Sms.CONTENT_URI, true, mObserver);
+        mResolver.registerContentObserver(Mms.CONTENT_URI, true, mObserver);
         initMsgList();
     }
 
     public void unregisterObserver() {
         if (V) Log.d(TAG, "unregisterObserver");
         mResolver.unregisterContentObserver(mObserver);
+        mHandler.removeMessages(MSG_HANDLE_CHANGES);
+        mHandler.removeMessages(MSG_FULL_SYNC);
+        synchronized(mChangedSms) {
+            mChangedSms.clear();
+            mChangedMms.clear();
+            mMsgListChanged = false;
+        }
         mMnsClient = null;
     }
 
@@ -355,11 +431,7 @@ public class BluetoothMapContentObserver {
         Log.d(TAG, "location is "+location);
         // 'SendingSuccess' is triggered only for MCE initiated case
         if(location == -1 || evt.eventType.equalsIgnoreCase("SendingSuccess")) {
-            try {
-                mMnsClient.sendEvent(evt.encode(), mMasId);
-            } catch (UnsupportedEncodingException ex) {
-                Log.w(TAG, ex);
-            }
+            mMnsClient.queueEvent(evt, mMasId);
         } else {
             Log.d(TAG, "Not MCE initiated operation" +location);
             return;
@@ -369,178 +441,421 @@ public class BluetoothMapContentObserver {
     private void initMsgList() {
         if (V) Log.d(TAG, "initMsgList");
 
-        mMsgListSms.clear();
-        mMsgListMms.clear();
+        synchronized(mMsgListSms) {
+            mMsgListSms.clear();
+            syncMsgListSms(false);
+        }
 
+        synchronized(mMsgListMms) {
+            mMsgListMms.clear();
+            mMmsIgnored.clear();
+            syncMsgListMms(false);
+        }
+    }
 
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+    /* Returns the id of the message a notified Uri points to, e.g. content://sms/12, or -1 */
+    private static long getMessageId(Uri uri) {
+        if (uri == null) return -1;
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 1) return -1;
+        try {
+            return Long.parseLong(segments.get(0));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
-        Cursor c = mResolver.query(Sms.CONTENT_URI,
-            SMS_PROJECTION, null, null, null);
+    private int getRowCount(Uri uri) {
+        Cursor c = mResolver.query(uri, COUNT_PROJECTION, null, null, null);
+        try {
+            if (c != null && c.moveToFirst()) {
+                return c.getInt(0);
+            }
+        } finally {
+            close(c);
+        }
+        return -1;
+    }
 
+    /* Only MMS in the inbox which have been retrieved are reported */
+    private static boolean isReportedMms(int type, int mtype) {
+        return !folderMms[type].equals("inbox") || mtype == MESSAGE_TYPE_RETRIEVE_CONF;
+    }
 
-            try {
-                while (c != null && c.moveToNext()) {
-                    long id = c.getLong(c.getColumnIndex(Sms._ID));
-                    int type = c.getInt(c.getColumnIndex(Sms.TYPE));
+    /* Send the events for a new or moved SMS. mMsgListSms must be locked. */
+    private void updateMsgSms(long id, int type) {
+        Msg msg = mMsgListSms.get(id);
 
-                    Msg msg = new Msg(id, type);
-                    msgListSms.put(id, msg);
-                }
-            } finally {
-                close(c);
+        if (msg == null) {
+            /* New message */
+            msg = new Msg(id, type);
+            mMsgListSms.put(id, msg);
+
+            if (folderSms[type].equals("inbox")) {
+                Event evt = new Event("NewMessage", id, folderSms[type],
+                    null, mSmsType);
+                sendEvent(evt);
+            }
+        } else if (type != msg.type) {
+            /* Existing message */
+            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
+            Event evt = new Event("MessageShift", id, folderSms[type],
+                folderSms[msg.type], mSmsType);
+            sendEvent(evt);
+            msg.type = type;
+        }
+    }
+
+    /* Send the event for a deleted SMS. mMsgListSms must be locked. */
+    private boolean removeMsgSms(long id) {
+        Msg msg = mMsgListSms.remove(id);
+        if (msg == null) return false;
+
+        Event evt = new Event("MessageDeleted", msg.id, "deleted",
+            null, mSmsType);
+        sendEvent(evt);
+        return true;
+    }
+
+    /* Send the events for a new or moved MMS. mMsgListMms must be locked. */
+    private void updateMsgMms(long id, int type, int mtype) {
+        Msg msg = mMsgListMms.get(id);
+
+        if (msg == null) {
+            /* New message - only notify on retrieve conf */
+            if (!isReportedMms(type, mtype)) {
+                mMmsIgnored.add(id);
+                return;
             }
+            mMmsIgnored.remove(id);
+
+            msg = new Msg(id, type);
+            mMsgListMms.put(id, msg);
 
-            synchronized(mMsgListSms) {
-                mMsgListSms.clear();
-                mMsgListSms = msgListSms;
+            if (folderMms[type].equals("inbox")) {
+                Event evt = new Event("NewMessage", id, folderMms[type],
+                    null, TYPE.MMS);
+                sendEvent(evt);
+            }
+        } else if (type != msg.type) {
+            /* Existing message */
+            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
+            Event evt = new Event("MessageShift", id, folderMms[type],
+                folderMms[msg.type], TYPE.MMS);
+            sendEvent(evt);
+            msg.type = type;
+
+            // Trigger 'SendingSuccess' for MMS ONLY when local initiated
+            int loc = findLocationMceInitiatedOperation(Long.toString(id));
+            if (folderMms[type].equals("sent")&& loc != -1) {
+                evt = new Event("SendingSuccess", id,
+                    folderMms[type], null, TYPE.MMS);
+                sendEvent(evt);
+                removeMceInitiatedOperation(loc);
             }
+        }
+    }
 
+    /* Send the event for a deleted MMS. mMsgListMms must be locked. */
+    private boolean removeMsgMms(long id) {
+        if (mMmsIgnored.remove(id)) return true;
 
+        Msg msg = mMsgListMms.remove(id);
+        if (msg == null) return false;
 
+        Event evt = new Event("MessageDeleted", msg.id, "deleted",
+            null, TYPE.MMS);
+        sendEvent(evt);
+        return true;
+    }
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+    /* Compare all SMS against mMsgListSms, mMsgListSms must be locked. */
+    private void syncMsgListSms(boolean notify) {
+        if (V) Log.d(TAG, "syncMsgListSms");
 
-        c = mResolver.query(Mms.CONTENT_URI,
-            MMS_PROJECTION, null, null, null);
+        Cursor c = mResolver.query(Sms.CONTENT_URI,
+            SMS_LIST_PROJECTION, null, null, null);
+        if (c == null) return;
+
+        Set<Long> deleted = new HashSet<Long>(mMsgListSms.keySet());
+        long maxId = -1;
         try {
-            while (c != null && c.moveToNext()) {
-                long id = c.getLong(c.getColumnIndex(Mms._ID));
-                int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                int type = c.getInt(1);
 
-                    Msg msg = new Msg(id, type );
-                    msgListMms.put(id, msg);
+                deleted.remove(id);
+                if (notify) {
+                    updateMsgSms(id, type);
+                } else {
+                    mMsgListSms.put(id, new Msg(id, type));
                 }
+                maxId = Math.max(maxId, id);
+            }
+            mSmsCount = c.getCount();
         } finally {
-                close(c);
+            close(c);
         }
 
-        synchronized(mMsgListMms) {
-            mMsgListMms.clear();
-            mMsgListMms = msgListMms;
+        for (long id : deleted) {
+            removeMsgSms(id);
         }
+        mSmsMaxId = maxId;
+        mSmsDeleted = 0;
     }
 
-    private void handleMsgListChangesSms() {
-        if (V) Log.d(TAG, "handleMsgListChangesSms");
+    /* Compare all MMS against mMsgListMms, mMsgListMms must be locked. */
+    private void syncMsgListMms(boolean notify) {
+        if (V) Log.d(TAG, "syncMsgListMms");
 
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+        Cursor c = mResolver.query(Mms.CONTENT_URI,
+            MMS_LIST_PROJECTION, null, null, null);
+        if (c == null) return;
 
-        Cursor c = mResolver.query(Sms.CONTENT_URI,
-            SMS_PROJECTION, null, null, null);
+        Set<Long> deleted = new HashSet<Long>(mMsgListMms.keySet());
+        deleted.addAll(mMmsIgnored);
+        long maxId = -1;
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                int type = c.getInt(1);
+                int mtype = c.getInt(2);
+
+                deleted.remove(id);
+                if (notify) {
+                    updateMsgMms(id, type, mtype);
+                } else if (isReportedMms(type, mtype)) {
+                    mMsgListMms.put(id, new Msg(id, type));
+                } else {
+                    mMmsIgnored.add(id);
+                }
+                maxId = Math.max(maxId, id);
+            }
+            mMmsCount = c.getCount();
+        } finally {
+            close(c);
+        }
+
+        for (long id : deleted) {
+            removeMsgMms(id);
+        }
+        mMmsMaxId = maxId;
+        mMmsDeleted = 0;
+    }
+
+    private void handleMsgChangeSms(long id) {
+        if (V) Log.d(TAG, "handleMsgChangeSms: " + id);
 
         synchronized(mMsgListSms) {
-            if (c != null && c.moveToFirst()) {
-                do {
-                    long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                    int type = c.getInt(c.getColumnIndex(Sms.TYPE));
+            Cursor c = mResolver.query(ContentUris.withAppendedId(Sms.CONTENT_URI, id),
+                SMS_LIST_PROJECTION, null, null, null);
+            if (c == null) return;
+            try {
+                if (c.moveToFirst()) {
+                    updateMsgSms(id, c.getInt(1));
+                } else if (removeMsgSms(id)) {
+                    mSmsDeleted++;
+                }
+            } finally {
+                close(c);
+            }
+        }
+    }
 
-                    Msg msg = mMsgListSms.remove(id);
+    private void handleMsgChangeMms(long id) {
+        if (V) Log.d(TAG, "handleMsgChangeMms: " + id);
 
-                    if (msg == null) {
-                        /* New message */
-                        msg = new Msg(id, type);
-                        msgListSms.put(id, msg);
+        synchronized(mMsgListMms) {
+            Cursor c = mResolver.query(ContentUris.withAppendedId(Mms.CONTENT_URI, id),
+                MMS_LIST_PROJECTION, null, null, null);
+            if (c == null) return;
+            try {
+                if (c.moveToFirst()) {
+                    updateMsgMms(id, c.getInt(1), c.getInt(2));
+                } else if (removeMsgMms(id)) {
+                    mMmsDeleted++;
+                }
+            } finally {
+                close(c);
+            }
+        }
+    }
 
-                        if (folderSms[type].equals("inbox")) {
-                            Event evt = new Event("NewMessage", id, folderSms[type],
-                                null, mSmsType);
-                            sendEvent(evt);
-                        }
-                    } else {
-                        /* Existing message */
-                        if (type != msg.type) {
-                            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                            Event evt = new Event("MessageShift", id, folderSms[type],
-                                folderSms[msg.type], mSmsType);
-                            sendEvent(evt);
-                            msg.type = type;
-                        }
-                        msgListSms.put(id, msg);
+    private void handleMsgListChangesSms(Set<Long> changed) {
+        if (V) Log.d(TAG, "handleMsgListChangesSms");
+
+        synchronized(mMsgListSms) {
+            /* Messages not in the inbox or sent folder may still move */
+            Set<Long> pending = new HashSet<Long>(changed);
+            for (Msg msg : mMsgListSms.values()) {
+                if (msg.type != Sms.MESSAGE_TYPE_INBOX && msg.type != Sms.MESSAGE_TYPE_SENT) {
+                    pending.add(msg.id);
+                }
+            }
+
+            String where = BaseColumns._ID + ">" + mSmsMaxId;
+            if (!pending.isEmpty()) {
+                where += " OR " + BaseColumns._ID + " IN (" + TextUtils.join(",", pending) + ")";
+            }
+            Cursor c = mResolver.query(Sms.CONTENT_URI,
+                SMS_LIST_PROJECTION, where, null, null);
+            if (c == null) return;
+
+            int added = 0;
+            long maxId = mSmsMaxId;
+            try {
+                while (c.moveToNext()) {
+                    long id = c.getLong(0);
+                    int type = c.getInt(1);
+
+                    pending.remove(id);
+                    if (id > mSmsMaxId) {
+                        added++;
+                        maxId = Math.max(maxId, id);
                     }
-                } while (c.moveToNext());
-                c.close();
+                    updateMsgSms(id, type);
+                }
+            } finally {
+                close(c);
             }
+            mSmsMaxId = maxId;
 
-            for (Msg msg : mMsgListSms.values()) {
-                Event evt = new Event("MessageDeleted", msg.id, "deleted",
-                    null, mSmsType);
-                sendEvent(evt);
+            for (long id : pending) {
+                if (removeMsgSms(id)) {
+                    mSmsDeleted++;
+                }
             }
 
-            mMsgListSms = msgListSms;
+            int count = getRowCount(Sms.CONTENT_URI);
+            if (count < 0) return;
+            if (count != mSmsCount + added - mSmsDeleted) {
+                if (D) Log.d(TAG, "SMS count " + count + " expected "
+                    + (mSmsCount + added - mSmsDeleted) + ", comparing all messages");
+                syncMsgListSms(true);
+            } else {
+                mSmsCount = count;
+                mSmsDeleted = 0;
+            }
         }
     }
 
-    private void handleMsgListChangesMms() {
+    private void handleMsgListChangesMms(Set<Long> changed) {
         if (V) Log.d(TAG, "handleMsgListChangesMms");
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
-
-        Cursor c = mResolver.query(Mms.CONTENT_URI,
-            MMS_PROJECTION, null, null, null);
-
         synchronized(mMsgListMms) {
-            if (c != null && c.moveToFirst()) {
-                do {
-                    long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                    int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                    int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
-
-                    Msg msg = mMsgListMms.remove(id);
-
-                    if (msg == null) {
-                        /* New message - only notify on retrieve conf */
-                        if (folderMms[type].equals("inbox") &&
-                            mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
-                                continue;
-                        }
+            /* Messages not in the inbox or sent folder may still move, and notification
+             * indications may still be retrieved */
+            Set<Long> pending = new HashSet<Long>(changed);
+            pending.addAll(mMmsIgnored);
+            for (Msg msg : mMsgListMms.values()) {
+                if (msg.type != Mms.MESSAGE_BOX_INBOX && msg.type != Mms.MESSAGE_BOX_SENT) {
+                    pending.add(msg.id);
+                }
+            }
 
-                        msg = new Msg(id, type);
-                        msgListMms.put(id, msg);
+            String where = BaseColumns._ID + ">" + mMmsMaxId;
+            if (!pending.isEmpty()) {
+                where += " OR " + BaseColumns._ID + " IN (" + TextUtils.join(",", pending) + ")";
+            }
+            Cursor c = mResolver.query(Mms.CONTENT_URI,
+                MMS_LIST_PROJECTION, where, null, null);
+            if (c == null) return;
 
-                        if (folderMms[type].equals("inbox")) {
-                            Event evt = new Event("NewMessage", id, folderMms[type],
-                                null, TYPE.MMS);
-                            sendEvent(evt);
-                        }
-                    } else {
-                        /* Existing message */
-                        if (type != msg.type) {
-                            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                            Event evt = new Event("MessageShift", id, folderMms[type],
-                                folderMms[msg.type], TYPE.MMS);
-                            sendEvent(evt);
-                            msg.type = type;
-
-                            // Trigger 'SendingSuccess' for MMS ONLY when local initiated
-                            int loc = findLocationMceInitiatedOperation(Long.toString(id));
-                            if (folderMms[type].equals("sent")&& loc != -1) {
-                                evt = new Event("SendingSuccess", id,
-                                    folderMms[type], null, TYPE.MMS);
-                                sendEvent(evt);
-                                removeMceInitiatedOperation(loc);
-                            }
-                        }
-                        msgListMms.put(id, msg);
+            int added = 0;
+            long maxId = mMmsMaxId;
+            try {
+                while (c.moveToNext()) {
+                    long id = c.getLong(0);
+                    int type = c.getInt(1);
+                    int mtype = c.getInt(2);
+
+                    pending.remove(id);
+                    if (id > mMmsMaxId) {
+                        added++;
+                        maxId = Math.max(maxId, id);
                     }
-                } while (c.moveToNext());
-                c.close();
+                    updateMsgMms(id, type, mtype);
+                }
+            } finally {
+                close(c);
             }
+            mMmsMaxId = maxId;
 
-            for (Msg msg : mMsgListMms.values()) {
-                Event evt = new Event("MessageDeleted", msg.id, "deleted",
-                    null, TYPE.MMS);
-                sendEvent(evt);
+            for (long id : pending) {
+                if (removeMsgMms(id)) {
+                    mMmsDeleted++;
+                }
             }
 
-            mMsgListMms = msgListMms;
+            int count = getRowCount(Mms.CONTENT_URI);
+            if (count < 0) return;
+            if (count != mMmsCount + added - mMmsDeleted) {
+                if (D) Log.d(TAG, "MMS count " + count + " expected "
+                    + (mMmsCount + added - mMmsDeleted) + ", comparing all messages");
+                syncMsgListMms(true);
+            } else {
+                mMmsCount = count;
+                mMmsDeleted = 0;
+            }
+        }
+    }
+
+    /* Records a notification, the changes are handled once the notifications of the same
+     * write have arrived. */
+    private void onMsgListChanged(Uri uri) {
+        long id = getMessageId(uri);
+        synchronized(mChangedSms) {
+            if (id >= 0 && Sms.CONTENT_URI.getAuthority().equals(uri.getAuthority())) {
+                mChangedSms.add(id);
+            } else if (id >= 0 && Mms.CONTENT_URI.getAuthority().equals(uri.getAuthority())) {
+                mChangedMms.add(id);
+            } else {
+                mMsgListChanged = true;
+            }
+        }
+        if (!mHandler.hasMessages(MSG_HANDLE_CHANGES)) {
+            mHandler.sendEmptyMessageDelayed(MSG_HANDLE_CHANGES, CHANGES_DELAY_MS);
         }
     }
 
     private void handleMsgListChanges() {
-        handleMsgListChangesSms();
-        handleMsgListChangesMms();
+        Set<Long> changedSms;
+        Set<Long> changedMms;
+        boolean listChanged;
+        synchronized(mChangedSms) {
+            changedSms = new HashSet<Long>(mChangedSms);
+            changedMms = new HashSet<Long>(mChangedMms);
+            listChanged = mMsgListChanged;
+            mChangedSms.clear();
+            mChangedMms.clear();
+            mMsgListChanged = false;
+        }
+
+        if (listChanged) {
+            /* A single pass over the new, pending and notified messages */
+            handleMsgListChangesSms(changedSms);
+            handleMsgListChangesMms(changedMms);
+            if (!mHandler.hasMessages(MSG_FULL_SYNC)) {
+                mHandler.sendEmptyMessageDelayed(MSG_FULL_SYNC, FULL_SYNC_INTERVAL_MS);
+            }
+        } else {
+            for (long id : changedSms) {
+                handleMsgChangeSms(id);
+            }
+            for (long id : changedMms) {
+                handleMsgChangeMms(id);
+            }
+        }
+    }
+
+    private void fullSyncMsgList() {
+        if (V) Log.d(TAG, "fullSyncMsgList");
+        synchronized(mMsgListSms) {
+            syncMsgListSms(true);
+        }
+        synchronized(mMsgListMms) {
+            syncMsgListMms(true);
+        }
     }
 
     private boolean deleteMessageMms(long handle) {
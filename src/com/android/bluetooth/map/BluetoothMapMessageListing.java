@@ -15,16 +15,13 @@
 package com.android.bluetooth.map;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import com.android.internal.util.FastXmlSerializer;
-import java.io.UnsupportedEncodingException;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
 import org.xmlpull.v1.XmlSerializer;
 
 import android.util.Log;
@@ -33,6 +30,7 @@ import android.util.Xml;
 public class BluetoothMapMessageListing {
     private boolean hasUnread = false;
     private static final String TAG = "BluetoothMapMessageListing";
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\"?>";
     private List<BluetoothMapMessageListingElement> list;
 
     public BluetoothMapMessageListing(){
@@ -71,6 +69,16 @@ public class BluetoothMapMessageListing {
         return hasUnread;
     }
 
+    /**
+     * Set whether the listing has unread messages, when the list only holds one page
+     * of the listing.
+     * @param hasUnread true if any message of the listing is unread
+     */
+    public void setHasUnread(boolean hasUnread)
+    {
+        this.hasUnread = hasUnread;
+    }
+
     /**
      * Encode the list of BluetoothMapMessageListingElement(s) into a UTF-8
      * formatted XML-string in a trimmed byte array
@@ -80,65 +88,53 @@ public class BluetoothMapMessageListing {
      *             if UTF-8 encoding is unsupported on the platform.
      */
     public byte[] encode() throws UnsupportedEncodingException {
-        Log.d(TAG, "encoding to UTF-8 format");
-        XmlSerializer xmlMsgElement = new FastXmlSerializer();
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        OutputStreamWriter myOutputStreamWriter = null;
         try {
-            myOutputStreamWriter = new OutputStreamWriter(outputStream, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Failed to encode: charset=" + "UTF-8");
+            encode(outputStream);
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
             return null;
         }
+        return outputStream.toByteArray();
+    }
 
-       try {
-            String str1;
-            String str2 = "<?xml version=\"1.0\"?>";
-            xmlMsgElement.setOutput(myOutputStreamWriter);
-            xmlMsgElement.startDocument("UTF-8", true);
-            xmlMsgElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-            xmlMsgElement.text("\n");
-            xmlMsgElement.startTag(null, "MAP-msg-listing");
-            xmlMsgElement.attribute(null, "version", "1.0");
-            // Do the XML encoding of list
-            if(list != null) {
-            for (BluetoothMapMessageListingElement element : list) {
-                   try {
-                element.encode(xmlMsgElement); // Append the list element
-        } catch (IllegalArgumentException e) {
-                        xmlMsgElement.endTag(null, "msg");
-            Log.w(TAG, e.toString());
-        } catch (IllegalStateException e) {
-            Log.w(TAG, e.toString());
-        } catch (IOException e) {
-            Log.w(TAG, e.toString());
-        }
-               }
-            }
-            xmlMsgElement.endTag(null, "MAP-msg-listing");
-            xmlMsgElement.endDocument();
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) into UTF-8
+     * formatted XML, written straight to a stream such as the OBEX body stream.
+     * Only the buffer of the serializer is held in memory, and the first
+     * packets are sent while the rest of the list is encoded.
+     *
+     * @param out the stream to write to, it is not closed.
+     * @throws IOException
+     *             if writing to the stream failed.
+     */
+    public void encode(OutputStream out) throws IOException {
+        Log.d(TAG, "encoding to UTF-8 format");
+        // Written instead of the declaration of the serializer
+        out.write(XML_DECLARATION.getBytes("UTF-8"));
 
-            try {
-                str1 = outputStream.toString("UTF-8");
-                Log.v(TAG, "Printing XML-Converted String: " + str1);
-                int line1 = 0;
-                line1 = str1.indexOf("\n");
-                str2 += str1.substring(line1 + 1);
-                if (list != null  && list.size() > 0) {
-                    int indxHandle = str2.indexOf("msg handle");
-                    str1 = "<" + str2.substring(indxHandle);
-                    str2 = str2.substring(0, (indxHandle - 1)) + str1;
+        XmlSerializer xmlMsgElement = new FastXmlSerializer();
+        xmlMsgElement.setOutput(out, "UTF-8");
+        xmlMsgElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        xmlMsgElement.text("\n");
+        xmlMsgElement.startTag(null, "MAP-msg-listing");
+        xmlMsgElement.attribute(null, "version", "1.0");
+        // Do the XML encoding of list
+        if (list != null) {
+            for (BluetoothMapMessageListingElement element : list) {
+                try {
+                    element.encode(xmlMsgElement); // Append the list element
+                } catch (IllegalArgumentException e) {
+                    xmlMsgElement.endTag(null, "msg");
+                    Log.w(TAG, e.toString());
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, e.toString());
                 }
-
-                return str2.getBytes("UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                Log.e(TAG, "Failed to encode: charset=" + "UTF-8");
-                return null;
             }
-        } catch (IOException e) {
-            Log.e(TAG, e.toString());
-            return null;
         }
+        xmlMsgElement.endTag(null, "MAP-msg-listing");
+        // Flushes the serializer
+        xmlMsgElement.endDocument();
     }
 
     public void sort() {
@@ -14,6 +14,7 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -445,6 +446,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     @Override
     public void onClose() {
         if (V) Log.v(TAG, "BluetoothMapObexServer: onClose");
+        mOutContent.close();
         if (mCallback != null) {
             Message msg = Message.obtain(mCallback);
             msg.what = BluetoothMapService.MSG_SERVERSESSION_CLOSE;
@@ -536,12 +538,11 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      */
     private int sendMessageListingRsp(Operation op, BluetoothMapAppParams appParams, String folderName){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        int listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
         if(folderName == null || folderName.length() == 0 ) {
             folderName = mCurrentFolder.getName();
         } else if(folderName.equalsIgnoreCase("draft") && mMasId ==1) {
@@ -583,9 +584,8 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 outList = mOutContent.msgListing(folderName, appParams);
                else
                   outList = mOutContent.msgListingEmail(folderName, appParams);
-                // Generate the byte stream
+                // The listing is encoded straight into the body stream once the headers are sent
                 outAppParams.setMessageListingSize(outList.getCount());
-                outBytes = outList.encode();
                 hasUnread = outList.hasUnread();
             }
             else {
@@ -624,17 +624,15 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if(outBytes != null) {
+        if(outList != null) {
+            boolean error = false;
             try {
-                while (bytesWritten < outBytes.length && sIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                // The body stream splits the listing into packets of the max packet size
+                outList.encode(new AbortableOutputStream(outStream));
             } catch (IOException e) {
                 if(V) Log.w(TAG,e);
                 // We were probably aborted or disconnected
+                error = true;
             } finally {
                 if(outStream != null) {
                     try {
@@ -644,7 +642,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     }
                 }
             }
-            if(bytesWritten != outBytes.length)
+            if(error || sIsAborted)
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         } else {
             try {
@@ -656,6 +654,40 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    /**
+     * Body stream which fails once the peer aborted the operation, so that a response
+     * encoded straight into the body stops being sent.
+     */
+    private static class AbortableOutputStream extends FilterOutputStream {
+        AbortableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkAborted();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkAborted();
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkAborted();
+            out.flush();
+        }
+
+        private static void checkAborted() throws IOException {
+            if (sIsAborted) {
+                throw new IOException("Operation aborted");
+            }
+        }
+    }
+
     /**
      * Generate and send the Folder listing response based on an application
      * parameter header. This function call will block until complete or aborted
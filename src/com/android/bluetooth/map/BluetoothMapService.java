@@ -475,6 +475,15 @@ public class BluetoothMapService extends ProfileService {
         return true;
     }
 
+    @Override
+    public void dump(StringBuilder sb) {
+        super.dump(sb);
+        BluetoothMnsObexClient mnsClient = mBluetoothMnsObexClient;
+        if (mnsClient != null) {
+            mnsClient.dump(sb);
+        }
+    }
+
     class BluetoothMapObexConnectionManager {
         private ArrayList<BluetoothMapObexConnection> mConnections =
                 new ArrayList<BluetoothMapObexConnection>();
@@ -0,0 +1,193 @@
+/*
+* Copyright (C) 2014 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.android.bluetooth.map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.map.BluetoothMapContentObserver.Event;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Holds the MAP events waiting to be sent to the MNS server, so that the
+ * content observers do not wait for an OBEX PUT per event.
+ *
+ * Events which cancel out while still waiting are merged: a NewMessage
+ * followed by a MessageDeleted for the same message is never sent, two
+ * MessageShift of a message become one, and repeated events are sent once.
+ * The queue is bounded, the oldest event is dropped when it is full.
+ */
+public class BluetoothMnsEventQueue {
+    private static final String TAG = "BluetoothMnsEventQueue";
+    private static final boolean V = Log.isLoggable(BluetoothMapService.LOG_TAG, Log.VERBOSE);
+
+    static final int MAX_EVENTS = 256;
+
+    private static final String NEW_MESSAGE = "NewMessage";
+    private static final String MESSAGE_DELETED = "MessageDeleted";
+    private static final String MESSAGE_SHIFT = "MessageShift";
+
+    /**
+     * An event waiting to be sent.
+     */
+    public static class Entry {
+        final Event event;
+        final int masId;
+        final long queuedAt;
+
+        Entry(Event event, int masId, long queuedAt) {
+            this.event = event;
+            this.masId = masId;
+            this.queuedAt = queuedAt;
+        }
+
+        boolean isSameMessage(Event evt, int masId) {
+            return this.masId == masId && event.handle == evt.handle
+                    && event.msgType == evt.msgType;
+        }
+    }
+
+    private final LinkedList<Entry> mEntries = new LinkedList<Entry>();
+
+    // Counters for the service dump.
+    private int mQueued;
+    private int mMerged;
+    private int mDropped;
+    private int mSent;
+    private int mFailed;
+    private int mMaxDepth;
+    private long mTotalLatencyMs;
+    private long mMaxLatencyMs;
+
+    /**
+     * Add an event, merging it with the waiting events of the same message.
+     */
+    public synchronized void offer(Event evt, int masId) {
+        mQueued++;
+        long queuedAt = SystemClock.elapsedRealtime();
+
+        if (MESSAGE_DELETED.equals(evt.eventType) && removeNewMessage(evt, masId)) {
+            if (V) Log.v(TAG, "Message " + evt.handle + " deleted before it was reported");
+            return;
+        }
+
+        Entry last = null;
+        for (Entry entry : mEntries) {
+            if (entry.isSameMessage(evt, masId)) {
+                last = entry;
+            }
+        }
+        if (last != null) {
+            if (MESSAGE_SHIFT.equals(evt.eventType) && MESSAGE_SHIFT.equals(last.event.eventType)) {
+                mEntries.remove(last);
+                mMerged++;
+                evt.oldFolder = last.event.oldFolder;
+                queuedAt = last.queuedAt;
+                if (evt.folder != null && evt.folder.equals(evt.oldFolder)) {
+                    // Moved back to where it was
+                    mMerged++;
+                    return;
+                }
+            } else if (isSameEvent(evt, last.event)) {
+                mMerged++;
+                return;
+            }
+        }
+
+        if (mEntries.size() >= MAX_EVENTS) {
+            Entry dropped = mEntries.removeFirst();
+            mDropped++;
+            Log.w(TAG, "Event queue full, dropping " + dropped.event.eventType
+                    + " " + dropped.event.handle);
+        }
+        mEntries.addLast(new Entry(evt, masId, queuedAt));
+        mMaxDepth = Math.max(mMaxDepth, mEntries.size());
+    }
+
+    /**
+     * Take the next event to send.
+     * @return the event, or null if there is none
+     */
+    public synchronized Entry poll() {
+        return mEntries.pollFirst();
+    }
+
+    /**
+     * Record the outcome of sending an event taken with {@link #poll()}.
+     */
+    public synchronized void onSent(Entry entry, boolean success) {
+        if (success) {
+            mSent++;
+        } else {
+            mFailed++;
+        }
+        long latency = SystemClock.elapsedRealtime() - entry.queuedAt;
+        mTotalLatencyMs += latency;
+        mMaxLatencyMs = Math.max(mMaxLatencyMs, latency);
+    }
+
+    /**
+     * Drop all waiting events, when the MNS connection is gone.
+     */
+    public synchronized void clear() {
+        mDropped += mEntries.size();
+        mEntries.clear();
+    }
+
+    public synchronized void dump(StringBuilder sb) {
+        int done = mSent + mFailed;
+        ProfileService.println(sb, "MNS events: depth=" + mEntries.size()
+                + " maxDepth=" + mMaxDepth + " queued=" + mQueued + " merged=" + mMerged
+                + " dropped=" + mDropped + " sent=" + mSent + " failed=" + mFailed);
+        ProfileService.println(sb, "MNS event latency: avg="
+                + (done > 0 ? mTotalLatencyMs / done : 0) + "ms max=" + mMaxLatencyMs + "ms");
+    }
+
+    // Remove the waiting events of a message if it is not reported yet.
+    private boolean removeNewMessage(Event evt, int masId) {
+        boolean found = false;
+        for (Entry entry : mEntries) {
+            if (entry.isSameMessage(evt, masId) && NEW_MESSAGE.equals(entry.event.eventType)) {
+                found = true;
+                break;
+            }
+        }
+        if (!found) return false;
+
+        Iterator<Entry> it = mEntries.iterator();
+        while (it.hasNext()) {
+            if (it.next().isSameMessage(evt, masId)) {
+                it.remove();
+                mMerged++;
+            }
+        }
+        // The deletion itself
+        mMerged++;
+        return true;
+    }
+
+    private static boolean isSameEvent(Event a, Event b) {
+        return a.eventType.equals(b.eventType) && equals(a.folder, b.folder)
+                && equals(a.oldFolder, b.oldFolder);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
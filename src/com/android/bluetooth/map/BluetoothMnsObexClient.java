@@ -29,6 +29,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 
 import javax.btobex.ApplicationParameter;
 import javax.btobex.ClientOperation;
@@ -63,9 +64,11 @@ public class BluetoothMnsObexClient {
     private boolean mObserverRegistered = false;
     private boolean mEmailObserverRegistered = false;
     private Handler mCallback = null;
+    private final BluetoothMnsEventQueue mEventQueue = new BluetoothMnsEventQueue();
 
     // Used by the MAS to forward notification registrations
     public static final int MSG_MNS_NOTIFICATION_REGISTRATION = 1;
+    private static final int MSG_MNS_SEND_EVENTS = 2;
 
 
     public static final ParcelUuid BluetoothUuid_ObexMns =
@@ -106,6 +109,9 @@ public class BluetoothMnsObexClient {
             case MSG_MNS_NOTIFICATION_REGISTRATION:
                 handleRegistration(msg.arg1 /*masId*/, msg.arg2 /*status*/);
                 break;
+            case MSG_MNS_SEND_EVENTS:
+                sendQueuedEvents();
+                break;
             default:
                 break;
             }
@@ -122,6 +128,7 @@ public class BluetoothMnsObexClient {
      */
     public synchronized void disconnect() {
         if(D) Log.d(TAG, "BluetoothMnsObexClient: disconnect");
+        mEventQueue.clear();
         try {
             if (mClientSession != null) {
                 mClientSession.disconnect(null);
@@ -323,7 +330,42 @@ public class BluetoothMnsObexClient {
         }
     }
 
-    public int sendEvent(byte[] eventBytes, int masInstanceId) {
+    /**
+     * Queue an event for the MNS server. The events are sent back to back from the
+     * MNS handler thread, so the content observers never wait for the remote.
+     */
+    public void queueEvent(BluetoothMapContentObserver.Event evt, int masInstanceId) {
+        mEventQueue.offer(evt, masInstanceId);
+        Handler handler = mHandler;
+        if (handler != null && !handler.hasMessages(MSG_MNS_SEND_EVENTS)) {
+            handler.sendEmptyMessage(MSG_MNS_SEND_EVENTS);
+        }
+    }
+
+    public void dump(StringBuilder sb) {
+        mEventQueue.dump(sb);
+    }
+
+    private void sendQueuedEvents() {
+        BluetoothMnsEventQueue.Entry entry;
+        while ((entry = mEventQueue.poll()) != null) {
+            if (!mConnected) {
+                Log.w(TAG, "sendQueuedEvents after disconnect, dropping events");
+                mEventQueue.onSent(entry, false);
+                mEventQueue.clear();
+                return;
+            }
+            int responseCode = -1;
+            try {
+                responseCode = sendEvent(entry.event.encode(), entry.masId);
+            } catch (UnsupportedEncodingException ex) {
+                Log.w(TAG, ex);
+            }
+            mEventQueue.onSent(entry, responseCode == ResponseCodes.OBEX_HTTP_OK);
+        }
+    }
+
+    private int sendEvent(byte[] eventBytes, int masInstanceId) {
 
         Log.d(TAG, "BluetoothMnsObexClient: sendEvent");
         boolean error = false;
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an incoming file through its {@link FileChannel}.
+ *
+ * The file is preallocated to its announced length so large transfers do
+ * not fragment, and the OBEX input is read straight into the write buffer
+ * instead of being copied through an intermediate packet buffer. Written
+ * data is forced to storage in batches rather than left to pile up in the
+ * page cache until the file is closed.
+ */
+class BluetoothOppFileChannelWriter {
+    private static final String TAG = "BtOppFileChannelWriter";
+    private static final boolean V = Constants.VERBOSE;
+
+    private static final int BUFFER_SIZE = 0x10000;
+    // Amount of data written between two syncs to storage.
+    private static final long FORCE_INTERVAL_BYTES = 4 * 1024 * 1024;
+
+    private final FileOutputStream mOutputStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private long mWritten;
+    private long mUnforced;
+
+    /**
+     * Returns whether an incoming file can be written through its channel, i.e. it is a
+     * regular file of known length.
+     */
+    static boolean isSupported(BluetoothOppReceiveFileInfo fileInfo) {
+        return fileInfo.mOutputStream != null && fileInfo.mFileName != null
+                && fileInfo.mLength > 0 && new File(fileInfo.mFileName).isFile();
+    }
+
+    BluetoothOppFileChannelWriter(FileOutputStream outputStream, long length) {
+        mOutputStream = outputStream;
+        mChannel = outputStream.getChannel();
+        try {
+            Os.posix_fallocate(outputStream.getFD(), 0, length);
+        } catch (ErrnoException e) {
+            // Not supported by every file system, the file simply grows as it is written.
+            if (V) Log.v(TAG, "Unable to preallocate " + length + " bytes: " + e);
+        } catch (IOException e) {
+            if (V) Log.v(TAG, "Unable to preallocate " + length + " bytes: " + e);
+        }
+    }
+
+    /**
+     * Reads the next bytes of the file from {@code is}.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream.
+     */
+    int readFrom(InputStream is) throws IOException {
+        if (!mBuffer.hasRemaining()) {
+            flush();
+        }
+        int readLength = is.read(mBuffer.array(), mBuffer.position(), mBuffer.remaining());
+        if (readLength > 0) {
+            mBuffer.position(mBuffer.position() + readLength);
+        }
+        return readLength;
+    }
+
+    /**
+     * Writes out the buffered data, trims the preallocated space that was not used and
+     * closes the file.
+     */
+    void close() throws IOException {
+        try {
+            flush();
+            mChannel.truncate(mWritten);
+            mChannel.force(false);
+        } finally {
+            mOutputStream.close();
+        }
+    }
+
+    private void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            int written = mChannel.write(mBuffer);
+            mWritten += written;
+            mUnforced += written;
+        }
+        mBuffer.clear();
+        if (mUnforced >= FORCE_INTERVAL_BYTES) {
+            mChannel.force(false);
+            mUnforced = 0;
+        }
+    }
+}
@@ -133,52 +133,6 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
         }
         return done;
     }
-    private class ContentResolverUpdateThread extends Thread {
-
-        private Uri contentUri;
-        private Context mContext1;
-        private volatile boolean interrupted = false;
-
-        public ContentResolverUpdateThread(Context context, Uri cntUri) {
-            super("BtOpp ContentResolverUpdateThread");
-            mContext1 = context;
-            contentUri = cntUri;
-        }
-
-        @Override
-        public void run() {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-            ContentValues updateValues;
-
-            while (true) {
-                if (pm.isScreenOn()) {
-                    updateValues = new ContentValues();
-                    updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                    mContext1.getContentResolver().update(contentUri, updateValues,
-                            null, null);
-                }
-
-                /* Check if the Operation is interrupted before entering sleep */
-                if (interrupted == true) {
-                    if (V) Log.v(TAG, "ContentResolverUpdateThread was interrupted before sleep !, exiting");
-                    return;
-                }
-
-                try {
-                    Thread.sleep(BluetoothShare.UI_UPDATE_INTERVAL);
-                } catch (InterruptedException e1) {
-                    if (V) Log.v(TAG, "ContentResolverUpdateThread was interrupted (1), exiting");
-                    return;
-                }
-            }
-        }
-
-        @Override
-        public void interrupt() {
-            interrupted = true;
-            super.interrupt();
-        }
-    }
 
     private class ClientThread extends Thread {
 
@@ -415,7 +369,9 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             int status = BluetoothShare.STATUS_SUCCESS;
             Uri contentUri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + mInfo.mId);
             ContentValues updateValues;
-            ContentResolverUpdateThread uiUpdateThread = null;
+            BluetoothOppProgressAggregator progress =
+                    BluetoothOppProgressAggregator.getInstance(mContext1);
+            BluetoothOppReadAhead readAhead = null;
             HeaderSet reply;
             position = 0;
             reply = new HeaderSet();
@@ -495,6 +451,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                     long timestamp = 0;
                     int outputBufferSize = putOperation.getMaxPacketSize();
                     byte[] buffer = new byte[outputBufferSize];
+                    BluetoothOppTransport transport = (BluetoothOppTransport)mTransport1;
                     BufferedInputStream a = new BufferedInputStream(fileInfo.mInputStream, 0x4000);
 
                     if (!mInterrupted && (position != fileInfo.mLength)) {
@@ -517,7 +474,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                             putOperation.getHeaderLength()+ " fileLen: " + fileInfo.mLength);
 
                         int size = readLength + putOperation.getHeaderLength() + 6;
-                        int status_2 = ((BluetoothOppTransport)mTransport1).setPutSockMTUSize(size);
+                        int status_2 = transport.setPutSockMTUSize(size);
 
                         if(V) Log.v(TAG,"setPutSockMTUSize status "+ status_2);
 
@@ -577,49 +534,35 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         }
                     }
                     long beginTime = System.currentTimeMillis();
+                    if (!mInterrupted && okToProceed && (position != fileInfo.mLength)) {
+                        // Read the rest of the file while the previous packet is on the air.
+                        readAhead = new BluetoothOppReadAhead(a, fileInfo.mLength - position,
+                                buffer.length, BluetoothOppReadAhead.DEFAULT_BUFFER_COUNT);
+                        readAhead.start();
+                    }
                     while (!mInterrupted && okToProceed && (position != fileInfo.mLength)) {
                         {
                             if (V) timestamp = System.currentTimeMillis();
 
-                            readbytesleft = fileInfo.mLength - position;
-                            if(readbytesleft < outputBufferSize) {
-                                outputBufferSize = (int) readbytesleft;
-                            }
-
-                            readLength = a.read(buffer, 0, outputBufferSize);
+                            BluetoothOppReadAhead.Chunk chunk = readAhead.take();
+                            readLength = chunk.length;
 
-                            while (true) {
-                                int congStatus = ((BluetoothOppTransport)mTransport1).getSockCongStatus();
-                                if ((congStatus == 0) || (congStatus == -1)) {
-                                    break;
-                                }
-                                try {
-                                    Thread.sleep(5);
-                                } catch (InterruptedException slpe) {
-                                    Log.v(TAG, "Interrupted while checking the socket congestion evt");
-                                    break;
-                                }
+                            if (!transport.waitUntilUncongested()) {
+                                Log.v(TAG, "Interrupted while waiting for the socket congestion to clear");
                             }
 
                             int writtenLength = 0;
                             while (writtenLength != readLength) {
-                                //SET MTU SIZE BEFORE WRITE
-                                if(V) Log.v(TAG,"outputstream: readLength: "+readLength+ " getHeaddrLength: " +
-                                    putOperation.getHeaderLength()+ " fileLen: " + fileInfo.mLength);
-
-                                int size = readLength + 6;
-                                int status_2 = ((BluetoothOppTransport)mTransport1).setPutSockMTUSize(size);
-                                if(V) Log.v(TAG,"setPutSockMTUSize status "+ status_2);
+                                //SET MTU SIZE BEFORE WRITE, only changes for the last packet
+                                transport.setPutSockMTUSize(readLength + 6);
                                 try {
-                                    outputStream.write(buffer, 0, readLength);
+                                    outputStream.write(chunk.buffer, 0, readLength);
                                     writtenLength = readLength;
                                 } catch (IOException e) {
                                     if (e.toString().contains("Try again")) {
-                                        Log.v(TAG, "Try Again Exception");
-                                        try {
-                                            Thread.sleep(10);
-                                        } catch (InterruptedException slpe) {
-                                            Log.v(TAG, "Interrupted while Try Again" + slpe.toString());
+                                        if (V) Log.v(TAG, "Try Again Exception");
+                                        if (!transport.waitAfterWriteFailure()) {
+                                            Log.v(TAG, "Interrupted while Try Again");
                                         }
                                         continue;
                                     } else {
@@ -628,6 +571,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                     }
                                 }
                             }
+                            readAhead.recycle(chunk);
 
                             /* check remote abort */
                             responseCode = putOperation.getResponseCode();
@@ -644,32 +588,17 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                             + (System.currentTimeMillis() - timestamp) + " ms");
                                 }
 
-                                if (uiUpdateThread == null) {
-                                    uiUpdateThread = new ContentResolverUpdateThread(mContext1,
-                                            contentUri);
-                                    if (V) Log.v(TAG, "Worker for Updation : Created");
-                                    uiUpdateThread.start();
-                                }
-
+                                progress.update(mInfo.mId, position);
                             }
                         }
                     }
 
-                    if (uiUpdateThread != null) {
-                        try {
-                            if (V) Log.v(TAG, "Worker for Updation : Destroying");
-                            uiUpdateThread.interrupt ();
-                            uiUpdateThread.join ();
-                            uiUpdateThread = null;
-
-                            updateValues = new ContentValues();
-                            updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                            mContext1.getContentResolver().update(contentUri, updateValues,
-                                        null, null);
-                        } catch (InterruptedException ie) {
-                            if (V) Log.v(TAG, "Interrupted waiting for uiUpdateThread to join");
-                        }
-                    }
+                    // Write the final position right away instead of with the next batch.
+                    progress.remove(mInfo.mId);
+                    updateValues = new ContentValues();
+                    updateValues.put(BluetoothShare.CURRENT_BYTES, position);
+                    mContext1.getContentResolver().update(contentUri, updateValues,
+                                null, null);
 
                     if (responseCode == ResponseCodes.OBEX_HTTP_FORBIDDEN
                             || responseCode == ResponseCodes.OBEX_HTTP_NOT_ACCEPTABLE) {
@@ -708,13 +637,15 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 handleSendException(e.toString());
             } finally {
                 try {
+                    // Stop the reader before the stream is closed under it
+                    if (readAhead != null) {
+                        readAhead.close();
+                    }
+
                     // Close InputStream and remove SendFileInfo from map
                     BluetoothOppUtility.closeSendFileInfo(mInfo.mUri);
 
-                    if (uiUpdateThread != null) {
-                        uiUpdateThread.interrupt ();
-                        uiUpdateThread = null;
-                    }
+                    progress.remove(mInfo.mId);
 
                     fileInfo.mInputStream.close();
                     if (!error) {
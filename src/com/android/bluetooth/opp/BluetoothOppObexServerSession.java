@@ -50,7 +50,6 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
-import android.os.Process;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
@@ -60,7 +59,6 @@ import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Profile;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.lang.Thread;
 
 
 import javax.btobex.HeaderSet;
@@ -194,52 +192,6 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
         mSession = null;
     }
 
-    private class ContentResolverUpdateThread extends Thread {
-
-        private Uri contentUri;
-        private Context mContext1;
-        private volatile boolean interrupted = false;
-
-        public ContentResolverUpdateThread(Context context, Uri cntUri) {
-            super("BtOpp Server ContentResolverUpdateThread");
-            mContext1 = context;
-            contentUri = cntUri;
-        }
-
-        @Override
-        public void run() {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-            ContentValues updateValues;
-            while (true) {
-                if (pm.isScreenOn()) {
-                    updateValues = new ContentValues();
-                    updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                    mContext1.getContentResolver().update(contentUri, updateValues,
-                            null, null);
-                }
-
-                /* Check if the Operation is interrupted before entering sleep */
-                if (interrupted == true) {
-                    if (V) Log.v(TAG, "ContentResolverUpdateThread was interrupted before sleep !, exiting");
-                    return;
-                }
-
-                try {
-                    Thread.sleep(BluetoothShare.UI_UPDATE_INTERVAL);
-                } catch (InterruptedException e1) {
-                    if (V) Log.v(TAG, "Server ContentResolverUpdateThread was interrupted (1), exiting");
-                    return;
-                }
-            }
-        }
-
-        @Override
-        public void interrupt() {
-            interrupted = true;
-            super.interrupt();
-        }
-    }
-
     /*
     * Called when a ABORT request is received.
     */
@@ -559,7 +511,9 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
         long beginTime = 0;
         int status = -1;
         BufferedOutputStream bos = null;
-        ContentResolverUpdateThread uiUpdateThread = null;
+        BluetoothOppFileChannelWriter channelWriter = null;
+        BluetoothOppProgressAggregator progress =
+                BluetoothOppProgressAggregator.getInstance(mContext);
 
         InputStream is = null;
         boolean error = false;
@@ -581,7 +535,12 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
 
         position = 0;
         if (!error) {
-            bos = new BufferedOutputStream(fileInfo.mOutputStream, 0x10000);
+            if (BluetoothOppFileChannelWriter.isSupported(fileInfo)) {
+                channelWriter = new BluetoothOppFileChannelWriter(fileInfo.mOutputStream,
+                        fileInfo.mLength);
+            } else {
+                bos = new BufferedOutputStream(fileInfo.mOutputStream, 0x10000);
+            }
         }
 
         if (!error) {
@@ -595,14 +554,20 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
 
                     if (V) timestamp = System.currentTimeMillis();
 
-                    readLength = is.read(b);
+                    if (channelWriter != null) {
+                        readLength = channelWriter.readFrom(is);
+                    } else {
+                        readLength = is.read(b);
+                    }
 
                     if (readLength == -1) {
                         if (D) Log.d(TAG, "Receive file reached stream end at position" + position);
                         break;
                     }
 
-                    bos.write(b, 0, readLength);
+                    if (channelWriter == null) {
+                        bos.write(b, 0, readLength);
+                    }
                     position += readLength;
 
                     if (V) {
@@ -611,28 +576,15 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                                 + (System.currentTimeMillis() - timestamp) + " ms");
                     }
 
-                    if (uiUpdateThread == null) {
-                        uiUpdateThread = new ContentResolverUpdateThread (mContext, contentUri);
-                        if (V) Log.v(TAG, "Worker for Updation : Created");
-                        uiUpdateThread.start();
-                    }
+                    progress.update(mInfo.mId, position);
                 }
 
-                if (uiUpdateThread != null) {
-                    try {
-                        if (V) Log.v(TAG, "Worker for Updation : Destroying");
-                        uiUpdateThread.interrupt ();
-                        uiUpdateThread.join ();
-                        uiUpdateThread = null;
-
-                        ContentValues updateValues = new ContentValues();
-                        updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                        mContext.getContentResolver().update(contentUri, updateValues,
-                                        null, null);
-                    } catch (InterruptedException ie) {
-                            if (V) Log.v(TAG, "Interrupted waiting for uiUpdateThread to join");
-                    }
-                }
+                // Write the final position right away instead of with the next batch.
+                progress.remove(mInfo.mId);
+                ContentValues updateValues = new ContentValues();
+                updateValues.put(BluetoothShare.CURRENT_BYTES, position);
+                mContext.getContentResolver().update(contentUri, updateValues,
+                                null, null);
             } catch (IOException e1) {
                 Log.e(TAG, "Error when receiving file: " + e1);
                 /* OBEX Abort packet received from remote device */
@@ -646,13 +598,7 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                 }
                 error = true;
             } finally {
-                if (uiUpdateThread != null) {
-                    if (V) {
-                        Log.v(TAG, "Worker for Updation : Finally Destroying");
-                    }
-                    uiUpdateThread.interrupt ();
-                    uiUpdateThread = null;
-                }
+                progress.remove(mInfo.mId);
             }
         }
 
@@ -682,6 +628,16 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                 Log.e(TAG, "Error when closing stream after send");
             }
         }
+        if (channelWriter != null) {
+            try {
+                channelWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error when closing file channel after receive");
+                if (status == BluetoothShare.STATUS_SUCCESS) {
+                    status = BluetoothShare.STATUS_FILE_ERROR;
+                }
+            }
+        }
         return status;
     }
 
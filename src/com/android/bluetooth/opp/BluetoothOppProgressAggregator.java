@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.SparseLongArray;
+
+import java.util.ArrayList;
+
+/**
+ * Collects the progress of all running OPP transfers and writes it to
+ * {@link BluetoothOppProvider} in one batch every
+ * {@link BluetoothShare#UI_UPDATE_INTERVAL}, instead of every transfer
+ * running its own update thread.
+ *
+ * Sessions report their position after each packet, which only records it
+ * in memory. Only the shares that moved since the last flush are written,
+ * and nothing is written while the screen is off. A singleton got from
+ * {@link #getInstance(Context)}.
+ */
+class BluetoothOppProgressAggregator {
+    private static final String TAG = "BtOppProgress";
+    private static final boolean V = Constants.VERBOSE;
+
+    private static final int MSG_FLUSH = 0;
+
+    private static final Object INSTANCE_LOCK = new Object();
+    private static BluetoothOppProgressAggregator INSTANCE;
+
+    private final Context mContext;
+    private final PowerManager mPowerManager;
+    private final Handler mHandler;
+
+    // Positions not written yet, keyed by share ID.
+    private final SparseLongArray mPending = new SparseLongArray();
+
+    // Held while writing, so that a share removed meanwhile is not overwritten afterwards.
+    private final Object mFlushLock = new Object();
+
+    static BluetoothOppProgressAggregator getInstance(Context context) {
+        synchronized (INSTANCE_LOCK) {
+            if (INSTANCE == null) {
+                INSTANCE = new BluetoothOppProgressAggregator(context.getApplicationContext());
+            }
+            return INSTANCE;
+        }
+    }
+
+    private BluetoothOppProgressAggregator(Context context) {
+        mContext = context;
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        HandlerThread thread = new HandlerThread("BtOppProgress",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_FLUSH) {
+                    flush();
+                }
+            }
+        };
+    }
+
+    /**
+     * Record the current position of a running transfer.
+     */
+    void update(int shareId, long currentBytes) {
+        synchronized (mPending) {
+            mPending.put(shareId, currentBytes);
+        }
+        if (!mHandler.hasMessages(MSG_FLUSH)) {
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH, BluetoothShare.UI_UPDATE_INTERVAL);
+        }
+    }
+
+    /**
+     * Drop the pending progress of a transfer, before the session writes its final position.
+     */
+    void remove(int shareId) {
+        synchronized (mFlushLock) {
+            synchronized (mPending) {
+                mPending.delete(shareId);
+            }
+        }
+    }
+
+    private void flush() {
+        synchronized (mFlushLock) {
+            if (!mPowerManager.isScreenOn()) {
+                // Keep the latest positions for when the screen turns back on.
+                synchronized (mPending) {
+                    if (mPending.size() > 0) {
+                        mHandler.sendEmptyMessageDelayed(MSG_FLUSH,
+                                BluetoothShare.UI_UPDATE_INTERVAL);
+                    }
+                }
+                return;
+            }
+
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>();
+            synchronized (mPending) {
+                for (int i = 0; i < mPending.size(); i++) {
+                    Uri uri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + mPending.keyAt(i));
+                    operations.add(ContentProviderOperation.newUpdate(uri)
+                            .withValue(BluetoothShare.CURRENT_BYTES, mPending.valueAt(i))
+                            .build());
+                }
+                mPending.clear();
+            }
+            if (operations.isEmpty()) {
+                return;
+            }
+
+            if (V) Log.v(TAG, "Writing progress of " + operations.size() + " transfers");
+            try {
+                mContext.getContentResolver().applyBatch(BluetoothShare.CONTENT_URI.getAuthority(),
+                        operations);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Unable to write transfer progress", e);
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, "Unable to write transfer progress", e);
+            }
+        }
+    }
+}
@@ -33,16 +33,24 @@
 package com.android.bluetooth.opp;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.content.UriMatcher;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
 import android.provider.LiveFolders;
 import android.util.Log;
 
@@ -64,7 +72,7 @@ public final class BluetoothOppProvider extends ContentProvider {
     private static final String DB_NAME = "btopp.db";
 
     /** Current database version */
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 3;
 
     /** Database version from which upgrading is a nop */
     private static final int DB_VERSION_NOP_UPGRADE_FROM = 0;
@@ -72,6 +80,12 @@ public final class BluetoothOppProvider extends ContentProvider {
     /** Database version to which upgrading is a nop */
     private static final int DB_VERSION_NOP_UPGRADE_TO = 1;
 
+    /** Database version that added the LAST_MODIFIED column */
+    private static final int DB_VERSION_LAST_MODIFIED = 2;
+
+    /** Database version that added the indices */
+    private static final int DB_VERSION_INDICES = 3;
+
     /** Name of table in the database */
     private static final String DB_TABLE = "btopp";
 
@@ -111,6 +125,23 @@ public final class BluetoothOppProvider extends ContentProvider {
     /** The database that lies underneath this content provider */
     private SQLiteOpenHelper mOpenHelper = null;
 
+    /** Set while a batch is applied, so that it only notifies observers once */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+
+    /** Last LAST_MODIFIED sequence given to a share, -1 until read from the database */
+    private long mLastModified = -1;
+
+    /** Delay between a transfer completing and trimming the history */
+    private static final long TRIM_DELAY_MS = 10000;
+
+    /** Vacuum once this share of the database pages is free */
+    private static final int VACUUM_FREE_PAGES_PERCENT = 25;
+
+    private static final int MSG_TRIM_HISTORY = 0;
+
+    /** Runs the history trimming off the binder threads */
+    private Handler mTrimHandler;
+
     /**
      * Creates and updated database on demand when opening it. Helper class to
      * create database the first time the provider is initialized and upgrade it
@@ -162,6 +193,19 @@ public final class BluetoothOppProvider extends ContentProvider {
                 // from NOP_FROM is the same as upgrading from NOP_TO.
                 oldV = DB_VERSION_NOP_UPGRADE_TO;
             }
+            if (oldV == DB_VERSION_NOP_UPGRADE_TO && newV >= DB_VERSION_LAST_MODIFIED) {
+                // Existing shares start at sequence 0, which is read on the first sync.
+                db.execSQL("ALTER TABLE " + DB_TABLE + " ADD COLUMN "
+                        + Constants.LAST_MODIFIED + " INTEGER DEFAULT 0");
+                oldV = DB_VERSION_LAST_MODIFIED;
+            }
+            if (oldV == DB_VERSION_LAST_MODIFIED && newV >= DB_VERSION_INDICES) {
+                createIndices(db);
+                oldV = DB_VERSION_INDICES;
+            }
+            if (oldV == newV) {
+                return;
+            }
             Log.i(TAG, "Upgrading downloads database from version " + oldV + " to "
                     + newV + ", which will destroy all old data");
             dropTable(db);
@@ -181,11 +225,42 @@ public final class BluetoothOppProvider extends ContentProvider {
                     + BluetoothShare.STATUS + " INTEGER, " + BluetoothShare.TOTAL_BYTES
                     + " INTEGER, " + BluetoothShare.CURRENT_BYTES + " INTEGER, "
                     + BluetoothShare.TIMESTAMP + " INTEGER," + Constants.MEDIA_SCANNED
-                    + " INTEGER); ");
+                    + " INTEGER, " + Constants.LAST_MODIFIED + " INTEGER DEFAULT 0); ");
         } catch (SQLException ex) {
             Log.e(TAG, "couldn't create table in downloads database");
             throw ex;
         }
+        createIndices(db);
+    }
+
+    /**
+     * Creates the indices used by the queries of the service, the notifications and the
+     * transfer history. They hold the columns these filter on, so that the rows are only
+     * read once they match.
+     */
+    private void createIndices(SQLiteDatabase db) {
+        try {
+            // Running shares and trimming at boot
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_status ON " + DB_TABLE
+                    + "(" + BluetoothShare.STATUS + ", " + BluetoothShare.DIRECTION + ", "
+                    + BluetoothShare.VISIBILITY + ", " + BluetoothShare.USER_CONFIRMATION
+                    + ");");
+            // Completed shares of one direction, newest first
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_direction_timestamp ON "
+                    + DB_TABLE + "(" + BluetoothShare.DIRECTION + ", " + BluetoothShare.TIMESTAMP
+                    + ", " + BluetoothShare.STATUS + ", " + BluetoothShare.VISIBILITY + ", "
+                    + BluetoothShare.USER_CONFIRMATION + ");");
+            // Shares waiting for the user to accept them
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_confirm ON " + DB_TABLE
+                    + "(" + BluetoothShare.USER_CONFIRMATION + ", " + BluetoothShare.VISIBILITY
+                    + ");");
+            // Shares changed since the last sync of the service
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_modified ON " + DB_TABLE
+                    + "(" + Constants.LAST_MODIFIED + ");");
+        } catch (SQLException ex) {
+            Log.e(TAG, "couldn't create indices in downloads database");
+            throw ex;
+        }
     }
 
     private void dropTable(SQLiteDatabase db) {
@@ -284,7 +359,15 @@ public final class BluetoothOppProvider extends ContentProvider {
         Context context = getContext();
         context.startService(new Intent(context, BluetoothOppService.class));
 
-        long rowID = db.insert(DB_TABLE, null, filteredValues);
+        long rowID;
+        db.beginTransaction();
+        try {
+            filteredValues.put(Constants.LAST_MODIFIED, nextModified(db));
+            rowID = db.insert(DB_TABLE, null, filteredValues);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
         Uri ret = null;
 
@@ -302,9 +385,107 @@ public final class BluetoothOppProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new DatabaseHelper(getContext());
+        // Lets the service and the UI read while transfers write their progress.
+        mOpenHelper.setWriteAheadLoggingEnabled(true);
+
+        HandlerThread thread = new HandlerThread("BtOppProviderTrim",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mTrimHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_TRIM_HISTORY) {
+                    trimHistory();
+                }
+            }
+        };
+        // Trim what was left over from before the last boot.
+        scheduleTrimHistory();
         return true;
     }
 
+    private void scheduleTrimHistory() {
+        if (!mTrimHandler.hasMessages(MSG_TRIM_HISTORY)) {
+            mTrimHandler.sendEmptyMessageDelayed(MSG_TRIM_HISTORY, TRIM_DELAY_MS);
+        }
+    }
+
+    /**
+     * Keeps the newest {@link Constants#MAX_RECORDS_IN_DATABASE} completed shares and
+     * deletes the older ones, then gives the freed pages back once enough of the
+     * database is free.
+     */
+    private void trimHistory() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final String completed = BluetoothShare.STATUS + " >= " + BluetoothShare.STATUS_SUCCESS;
+        int count;
+        try {
+            count = db.delete(DB_TABLE, completed + " AND " + BluetoothShare._ID
+                    + " <= (SELECT " + BluetoothShare._ID + " FROM " + DB_TABLE + " WHERE "
+                    + completed + " ORDER BY " + BluetoothShare._ID + " DESC LIMIT 1 OFFSET "
+                    + Constants.MAX_RECORDS_IN_DATABASE + ")", null);
+        } catch (SQLException ex) {
+            Log.e(TAG, "couldn't trim downloads database", ex);
+            return;
+        }
+        if (count == 0) {
+            return;
+        }
+        if (V) Log.v(TAG, "Deleted " + count + " old shares");
+        getContext().getContentResolver().notifyChange(BluetoothShare.CONTENT_URI, null);
+
+        long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        if (freePages * 100 >= pages * VACUUM_FREE_PAGES_PERCENT) {
+            if (V) Log.v(TAG, "Vacuuming " + freePages + " free pages of " + pages);
+            try {
+                db.execSQL("VACUUM");
+            } catch (SQLException ex) {
+                // Readers were active, the free pages are reused by later inserts anyway.
+                Log.w(TAG, "couldn't vacuum downloads database", ex);
+            }
+        }
+    }
+
+    /**
+     * Applies the operations in a single transaction and notifies observers once.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        mApplyingBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+            mApplyingBatch.remove();
+            getContext().getContentResolver().notifyChange(BluetoothShare.CONTENT_URI, null);
+        }
+    }
+
+    /**
+     * Returns the LAST_MODIFIED sequence of the next write. Called inside the write
+     * transaction, which is exclusive, so that the sequences are committed in order and
+     * a reader never sees a share with a higher sequence before one with a lower.
+     */
+    private synchronized long nextModified(SQLiteDatabase db) {
+        if (mLastModified < 0) {
+            mLastModified = DatabaseUtils.longForQuery(db, "SELECT MAX("
+                    + Constants.LAST_MODIFIED + ") FROM " + DB_TABLE, null);
+        }
+        return ++mLastModified;
+    }
+
+    private void notifyChange(Uri uri) {
+        if (mApplyingBatch.get() == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
@@ -420,7 +601,19 @@ public final class BluetoothOppProvider extends ContentProvider {
                 }
 
                 if (values.size() > 0) {
-                    count = db.update(DB_TABLE, values, myWhere, selectionArgs);
+                    ContentValues modifiedValues = new ContentValues(values);
+                    db.beginTransaction();
+                    try {
+                        modifiedValues.put(Constants.LAST_MODIFIED, nextModified(db));
+                        count = db.update(DB_TABLE, modifiedValues, myWhere, selectionArgs);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    Integer status = values.getAsInteger(BluetoothShare.STATUS);
+                    if (count > 0 && status != null && BluetoothShare.isStatusCompleted(status)) {
+                        scheduleTrimHistory();
+                    }
                 } else {
                     count = 0;
                 }
@@ -431,7 +624,7 @@ public final class BluetoothOppProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Cannot update URI: " + uri);
             }
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
@@ -468,7 +661,7 @@ public final class BluetoothOppProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Cannot delete URI: " + uri);
             }
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
 }
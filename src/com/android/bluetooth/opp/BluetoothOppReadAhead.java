@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the file being sent ahead of the OBEX client, so that the next
+ * packet is read from storage while the current one is on the air.
+ *
+ * A reader thread fills a small pool of packet sized buffers, which the
+ * sender takes in order and hands back once they are written.
+ */
+class BluetoothOppReadAhead {
+    private static final String TAG = "BtOppReadAhead";
+    private static final boolean V = Constants.VERBOSE;
+
+    // One buffer on the air, one ready to go and one being read.
+    static final int DEFAULT_BUFFER_COUNT = 3;
+
+    // How long close() waits for a read in progress to finish.
+    private static final int JOIN_TIMEOUT_MS = 500;
+
+    /**
+     * A packet read from the file.
+     */
+    static class Chunk {
+        final byte[] buffer;
+        int length;
+
+        Chunk(int size) {
+            buffer = new byte[size];
+        }
+    }
+
+    // Handed to the sender when reading failed or the file ended early.
+    private static final Chunk END_OF_STREAM = new Chunk(0);
+
+    private final InputStream mInputStream;
+    private final long mLength;
+    private final BlockingQueue<Chunk> mFree;
+    private final BlockingQueue<Chunk> mFilled;
+    private final Thread mReader;
+
+    private volatile boolean mClosed;
+    private volatile IOException mError;
+
+    /**
+     * @param inputStream stream positioned at the first byte to read ahead.
+     * @param length number of bytes left to send.
+     * @param packetSize size of each buffer, the max packet size of the PUT operation.
+     * @param bufferCount number of buffers in the pool.
+     */
+    BluetoothOppReadAhead(InputStream inputStream, long length, int packetSize,
+            int bufferCount) {
+        mInputStream = inputStream;
+        mLength = length;
+        mFree = new ArrayBlockingQueue<Chunk>(bufferCount);
+        // One more slot for the end of stream marker.
+        mFilled = new ArrayBlockingQueue<Chunk>(bufferCount + 1);
+        for (int i = 0; i < bufferCount; i++) {
+            mFree.add(new Chunk(packetSize));
+        }
+        mReader = new Thread(new Runnable() {
+            public void run() {
+                readAhead();
+            }
+        }, "BtOppReadAhead");
+    }
+
+    void start() {
+        mReader.start();
+    }
+
+    /**
+     * Returns the next packet, blocking until it has been read.
+     *
+     * @throws IOException if reading the file failed or it ended before the expected length.
+     */
+    Chunk take() throws IOException {
+        Chunk chunk;
+        try {
+            chunk = mFilled.take();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while reading ahead");
+        }
+        if (chunk == END_OF_STREAM) {
+            IOException error = mError;
+            throw error != null ? error : new IOException("Unexpected end of file");
+        }
+        return chunk;
+    }
+
+    /**
+     * Hands a packet back once it has been written.
+     */
+    void recycle(Chunk chunk) {
+        mFree.offer(chunk);
+    }
+
+    /**
+     * Stops reading ahead and waits for the reader thread to finish, so that
+     * the owner can close the input stream once this returns.
+     */
+    void close() {
+        mClosed = true;
+        mReader.interrupt();
+        try {
+            mReader.join(JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mReader.isAlive()) {
+            Log.w(TAG, "Reader still blocked after " + JOIN_TIMEOUT_MS + " ms");
+        }
+    }
+
+    private void readAhead() {
+        long remaining = mLength;
+        try {
+            while (!mClosed && remaining > 0) {
+                Chunk chunk = mFree.take();
+                int size = (int) Math.min(chunk.buffer.length, remaining);
+                chunk.length = readFully(chunk.buffer, size);
+                if (chunk.length <= 0) {
+                    break;
+                }
+                remaining -= chunk.length;
+                mFilled.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            if (V) Log.v(TAG, "Read ahead interrupted");
+        } catch (IOException e) {
+            if (!mClosed) Log.e(TAG, "Read ahead failed", e);
+            mError = e;
+        }
+        if (remaining > 0) {
+            mFilled.offer(END_OF_STREAM);
+        }
+    }
+
+    private int readFully(byte[] buffer, int size) throws IOException {
+        int done = 0;
+        while (done < size) {
+            int got = mInputStream.read(buffer, done, size - done);
+            if (got <= 0) break;
+            done += got;
+        }
+        return done;
+    }
+}
@@ -58,6 +58,8 @@ import android.os.PowerManager;
 import java.io.File;
 import android.util.Log;
 import android.os.Process;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -100,10 +102,17 @@ public class BluetoothOppService extends Service {
 
     private UpdateThread mUpdateThread;
 
-    private ArrayList<BluetoothOppShareInfo> mShares;
+    /** Local copy of the shares in the provider, keyed by share ID */
+    private SparseArray<BluetoothOppShareInfo> mShares;
 
     private ArrayList<BluetoothOppBatch> mBatchs;
 
+    /** The batches in mBatchs, keyed by the timestamp of their shares */
+    private LongSparseArray<BluetoothOppBatch> mBatchsByTimestamp;
+
+    /** Highest LAST_MODIFIED sequence read from the provider, -1 before the first pass */
+    private long mLastModified = -1;
+
     private BluetoothOppTransfer mTransfer;
 
     private BluetoothOppTransfer mServerTransfer;
@@ -158,8 +167,9 @@ public class BluetoothOppService extends Service {
         mL2capSocketListener = new BluetoothOppL2capListener(mAdapter);
         mRfcommSocketListener = new BluetoothOppRfcommListener(mAdapter);
 
-        mShares = Lists.newArrayList();
+        mShares = new SparseArray<BluetoothOppShareInfo>();
         mBatchs = Lists.newArrayList();
+        mBatchsByTimestamp = new LongSparseArray<BluetoothOppBatch>();
         mObserver = new BluetoothShareContentObserver();
         getContentResolver().registerContentObserver(BluetoothShare.CONTENT_URI, true, mObserver);
         mBatchId = 1;
@@ -389,6 +399,7 @@ public class BluetoothOppService extends Service {
 
         if(mBatchs != null) {
             mBatchs.clear();
+            mBatchsByTimestamp.clear();
         }
         if(mShares != null) {
             mShares.clear();
@@ -484,10 +495,23 @@ public class BluetoothOppService extends Service {
                             + mListenStarted);
                     mPendingUpdate = false;
                 }
+                /*
+                 * Take the count of shares before reading the changes: a share deleted
+                 * from then on is still in the local array and the count then differs
+                 * from its size, so that deletions are never missed.
+                 */
+                int shareCount = queryShareCount();
+
+                /*
+                 * Only read the shares that were inserted or updated since the last
+                 * pass. The provider bumps the LAST_MODIFIED sequence of every share
+                 * it writes, inside the write transaction, so they commit in order.
+                 */
                 Cursor cursor;
                 try {
-                    cursor = getContentResolver().query(BluetoothShare.CONTENT_URI, null, null,
-                            null, BluetoothShare._ID);
+                    cursor = getContentResolver().query(BluetoothShare.CONTENT_URI, null,
+                            Constants.LAST_MODIFIED + " > " + mLastModified, null,
+                            BluetoothShare._ID);
                 } catch (SQLiteException e) {
                     cursor = null;
                     Log.e(TAG, "SQLite exception: " + e);
@@ -497,127 +521,65 @@ public class BluetoothOppService extends Service {
                     return;
                 }
 
-                cursor.moveToFirst();
-
-                int arrayPos = 0;
-
-                keepService = false;
-                boolean isAfterLast = cursor.isAfterLast();
-
                 int idColumn;
+                int modifiedColumn;
                 try {
                     idColumn = cursor.getColumnIndexOrThrow(BluetoothShare._ID);
+                    modifiedColumn = cursor.getColumnIndexOrThrow(Constants.LAST_MODIFIED);
                 } catch (IllegalArgumentException e) {
                     cursor.close();
                     cursor = null;
                     Log.e (TAG, "Invalid share ID");
                     return;
                 }
-                /*
-                 * Walk the cursor and the local array to keep them in sync. The
-                 * key to the algorithm is that the ids are unique and sorted
-                 * both in the cursor and in the array, so that they can be
-                 * processed in order in both sources at the same time: at each
-                 * step, both sources point to the lowest id that hasn't been
-                 * processed from that source, and the algorithm processes the
-                 * lowest id from those two possibilities. At each step: -If the
-                 * array contains an entry that's not in the cursor, remove the
-                 * entry, move to next entry in the array. -If the array
-                 * contains an entry that's in the cursor, nothing to do, move
-                 * to next cursor row and next array entry. -If the cursor
-                 * contains an entry that's not in the array, insert a new entry
-                 * in the array, move to next cursor row and next array entry.
-                 */
-                while (!isAfterLast || arrayPos < mShares.size()) {
-                    if (isAfterLast) {
-                        // We're beyond the end of the cursor but there's still
-                        // some
-                        // stuff in the local array, which can only be junk
-                        if (mShares.size() != 0)
-                            if (V) Log.v(TAG, "Array update: trimming " +
-                                mShares.get(arrayPos).mId + " @ " + arrayPos);
-
-                        if (shouldScanFile(arrayPos)) {
-                            scanFile(null, arrayPos);
-                        }
-                        deleteShare(arrayPos); // this advances in the array
-                    } else {
-                        int id = cursor.getInt(idColumn);
 
-                        if (arrayPos == mShares.size()) {
-                            insertShare(cursor, arrayPos);
-                            if (V) Log.v(TAG, "Array update: inserting " + id + " @ " + arrayPos);
-                            if (shouldScanFile(arrayPos) && (!scanFile(cursor, arrayPos))) {
-                                keepService = true;
-                            }
-                            if (visibleNotification(arrayPos)) {
-                                keepService = true;
-                            }
-                            if (needAction(arrayPos)) {
-                                keepService = true;
-                            }
+                boolean changed = mLastModified < 0;
+                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                    int id = cursor.getInt(idColumn);
+                    mLastModified = Math.max(mLastModified, cursor.getLong(modifiedColumn));
+                    changed = true;
 
-                            ++arrayPos;
-                            cursor.moveToNext();
-                            isAfterLast = cursor.isAfterLast();
-                        } else {
-                            int arrayId = 0;
-                            if (mShares.size() != 0)
-                                arrayId = mShares.get(arrayPos).mId;
-
-                            if (arrayId < id) {
-                                if (V) Log.v(TAG, "Array update: removing " + arrayId + " @ "
-                                            + arrayPos);
-                                if (shouldScanFile(arrayPos)) {
-                                    scanFile(null, arrayPos);
-                                }
-                                deleteShare(arrayPos);
-                            } else if (arrayId == id) {
-                                // This cursor row already exists in the stored
-                                // array
-                                if(V) Log.v(TAG," Calling Updateshare arraypos " + arrayPos);
-                                updateShare(cursor, arrayPos, userAccepted);
-                                if (shouldScanFile(arrayPos) && (!scanFile(cursor, arrayPos))) {
-                                    keepService = true;
-                                }
-                                if (visibleNotification(arrayPos)) {
-                                    keepService = true;
-                                }
-                                if (needAction(arrayPos)) {
-                                    keepService = true;
-                                }
-
-                                ++arrayPos;
-                                cursor.moveToNext();
-                                isAfterLast = cursor.isAfterLast();
-                            } else {
-                                // This cursor entry didn't exist in the stored
-                                // array
-                                if (V) Log.v(TAG, "Array update: appending " + id + " @ " + arrayPos);
-                                insertShare(cursor, arrayPos);
-
-                                if (shouldScanFile(arrayPos) && (!scanFile(cursor, arrayPos))) {
-                                    keepService = true;
-                                }
-                                if (visibleNotification(arrayPos)) {
-                                    keepService = true;
-                                }
-                                if (needAction(arrayPos)) {
-                                    keepService = true;
-                                }
-                                ++arrayPos;
-                                cursor.moveToNext();
-                                isAfterLast = cursor.isAfterLast();
-                            }
-                        }
+                    BluetoothOppShareInfo info = mShares.get(id);
+                    if (info == null) {
+                        if (V) Log.v(TAG, "Array update: inserting " + id);
+                        insertShare(cursor);
+                    } else {
+                        if(V) Log.v(TAG," Calling Updateshare " + id);
+                        updateShare(cursor, info, userAccepted);
                     }
                 }
 
-                mNotifier.updateNotification();
-
                 cursor.close();
                 cursor = null;
 
+                if (shareCount != mShares.size()) {
+                    removeDeletedShares();
+                    changed = true;
+                }
+
+                /*
+                 * Shares waiting for the media scanner are retried on every pass, and
+                 * the service is kept while any share still needs it. Both only look
+                 * at the local array.
+                 */
+                keepService = false;
+                for (int i = 0; i < mShares.size(); i++) {
+                    BluetoothOppShareInfo info = mShares.valueAt(i);
+                    if (shouldScanFile(info) && (!scanFile(info))) {
+                        keepService = true;
+                    }
+                    if (visibleNotification(info)) {
+                        keepService = true;
+                    }
+                    if (needAction(info)) {
+                        keepService = true;
+                    }
+                }
+
+                if (changed) {
+                    mNotifier.updateNotification();
+                }
+
                 if (V) {
                     if (mServerSession != null) {
                         Log.v(TAG, "Server Session is active");
@@ -656,8 +618,70 @@ public class BluetoothOppService extends Service {
 
     }
 
+    /**
+     * Returns the number of shares in the provider, or -1 if it could not be read.
+     */
+    private int queryShareCount() {
+        Cursor cursor;
+        try {
+            cursor = getContentResolver().query(BluetoothShare.CONTENT_URI,
+                    new String[] {"COUNT(*)"}, null, null, null);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "SQLite exception: " + e);
+            return -1;
+        }
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Removes the local copies of the shares that were deleted from the provider. Walks
+     * the IDs of the provider against the local array, both sorted by ID.
+     */
+    private void removeDeletedShares() {
+        Cursor cursor;
+        try {
+            cursor = getContentResolver().query(BluetoothShare.CONTENT_URI,
+                    new String[] {BluetoothShare._ID}, null, null, BluetoothShare._ID);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "SQLite exception: " + e);
+            return;
+        }
+        if (cursor == null) {
+            return;
+        }
+
+        cursor.moveToFirst();
+        int arrayPos = 0;
+        while (arrayPos < mShares.size()) {
+            int arrayId = mShares.keyAt(arrayPos);
+            while (!cursor.isAfterLast() && cursor.getInt(0) < arrayId) {
+                cursor.moveToNext();
+            }
+            if (!cursor.isAfterLast() && cursor.getInt(0) == arrayId) {
+                ++arrayPos;
+                continue;
+            }
+
+            if (V) Log.v(TAG, "Array update: removing " + arrayId + " @ " + arrayPos);
+            BluetoothOppShareInfo info = mShares.valueAt(arrayPos);
+            if (shouldScanFile(info)) {
+                scanFile(info);
+            }
+            deleteShare(info); // this advances in the array
+        }
+        cursor.close();
+    }
+
     private BluetoothOppTransfer insertShareWithOngoingBatch(BluetoothOppTransfer transfer,
-                        BluetoothOppBatch batch, int arrayPos, BluetoothOppObexSession session) {
+                        BluetoothOppBatch batch, BluetoothOppShareInfo info,
+                        BluetoothOppObexSession session) {
         if(transfer == null) {
             transfer = new BluetoothOppTransfer(this, mPowerManager, batch, session);
             if (transfer != null) {
@@ -665,14 +689,15 @@ public class BluetoothOppService extends Service {
             } else {
                 Log.e(TAG, "Unexpected error! mTransfer is null");
                 mBatchs.remove(batch);
+                mBatchsByTimestamp.remove(batch.mTimestamp);
                 mBatchId--;
-                mShares.remove(arrayPos);
+                mShares.remove(info.mId);
             }
         }
         return transfer;
     }
 
-    private void insertShare(Cursor cursor, int arrayPos) {
+    private void insertShare(Cursor cursor) {
         String uriString = cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare.URI));
         Uri uri;
         if (uriString != null) {
@@ -717,7 +742,7 @@ public class BluetoothOppService extends Service {
             Log.v(TAG, "SCANNED : " + info.mMediaScanned);
         }
 
-        mShares.add(arrayPos, info);
+        mShares.put(info.mId, info);
         /* Mark the info as failed if it's in invalid status */
         if (info.isObsolete()) {
             Constants.updateShareStatus(this, info.mId, BluetoothShare.STATUS_UNKNOWN_ERROR);
@@ -748,7 +773,7 @@ public class BluetoothOppService extends Service {
                 BluetoothOppBatch newBatch = new BluetoothOppBatch(this, info);
                 newBatch.mId = mBatchId;
                 mBatchId++;
-                mBatchs.add(newBatch);
+                addBatch(newBatch);
                 if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
                     if (V) Log.v(TAG, "Service create new Batch " + newBatch.mId
                                 + " for OUTBOUND info " + info.mId);
@@ -772,27 +797,27 @@ public class BluetoothOppService extends Service {
                 }
 
             } else {
-                int i = findBatchWithTimeStamp(info.mTimestamp);
-                if (i != -1) {
+                BluetoothOppBatch batch = findBatchWithTimeStamp(info.mTimestamp);
+                if (batch != null) {
                     if (V) Log.v(TAG, "Service add info " + info.mId + " to existing batch "
-                                + mBatchs.get(i).mId);
+                                + batch.mId);
                     if (V) Log.v(TAG," Batch Status   " + info.mStatus);
-                    mBatchs.get(i).addShare(info);
+                    batch.addShare(info);
                 } else {
                     // There is ongoing batch
                     BluetoothOppBatch newBatch = new BluetoothOppBatch(this, info);
                     newBatch.mId = mBatchId;
                     mBatchId++;
                     if (V) Log.v(TAG, "mBatchs.add(newBatch) start!!");
-                    mBatchs.add(newBatch);
+                    addBatch(newBatch);
                     if (V) Log.v(TAG, "Service add new Batch " + newBatch.mId + " for info " +
                             info.mId);
                     if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                        mTransfer = insertShareWithOngoingBatch(mTransfer, newBatch, arrayPos,
+                        mTransfer = insertShareWithOngoingBatch(mTransfer, newBatch, info,
                             null);
                     } else if (info.mDirection == BluetoothShare.DIRECTION_INBOUND) {
                         mServerTransfer = insertShareWithOngoingBatch(mServerTransfer, newBatch,
-                            arrayPos, mServerSession);
+                            info, mServerSession);
                     }
 
                     if (Constants.USE_TCP_DEBUG && !Constants.USE_TCP_SIMPLE_SERVER) {
@@ -810,8 +835,7 @@ public class BluetoothOppService extends Service {
         }
     }
 
-    private void updateShare(Cursor cursor, int arrayPos, boolean userAccepted) {
-        BluetoothOppShareInfo info = mShares.get(arrayPos);
+    private void updateShare(Cursor cursor, BluetoothOppShareInfo info, boolean userAccepted) {
         int statusColumn = cursor.getColumnIndexOrThrow(BluetoothShare.STATUS);
 
         info.mId = cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare._ID));
@@ -864,17 +888,15 @@ public class BluetoothOppService extends Service {
         if (confirmUpdated) {
             if (V) Log.v(TAG, "Service handle info " + info.mId + " confirmation updated");
             /* Inbounds transfer user confirmation status changed, update the session server */
-            int i = findBatchWithTimeStamp(info.mTimestamp);
-            if (i != -1) {
-                BluetoothOppBatch batch = mBatchs.get(i);
+            BluetoothOppBatch batch = findBatchWithTimeStamp(info.mTimestamp);
+            if (batch != null) {
                 if (mServerTransfer != null && batch.mId == mServerTransfer.getBatchId()) {
                     mServerTransfer.confirmStatusChanged();
                 } //TODO need to think about else
             }
         }
-        int i = findBatchWithTimeStamp(info.mTimestamp);
-        if (i != -1) {
-            BluetoothOppBatch batch = mBatchs.get(i);
+        BluetoothOppBatch batch = findBatchWithTimeStamp(info.mTimestamp);
+        if (batch != null) {
             if (batch.mStatus == Constants.BATCH_STATUS_FINISHED
                     || batch.mStatus == Constants.BATCH_STATUS_FAILED) {
                 if (V) Log.v(TAG, "Batch " + batch.mId + " is finished");
@@ -910,18 +932,15 @@ public class BluetoothOppService extends Service {
     /**
      * Removes the local copy of the info about a share.
      */
-    private void deleteShare(int arrayPos) {
-        BluetoothOppShareInfo info = mShares.get(arrayPos);
-
+    private void deleteShare(BluetoothOppShareInfo info) {
         /*
-         * Delete arrayPos from a batch. The logic is
+         * Delete info from a batch. The logic is
          * 1) Search existing batch for the info
          * 2) cancel the batch
          * 3) If the batch become empty delete the batch
          */
-        int i = findBatchWithTimeStamp(info.mTimestamp);
-        if (i != -1) {
-            BluetoothOppBatch batch = mBatchs.get(i);
+        BluetoothOppBatch batch = findBatchWithTimeStamp(info.mTimestamp);
+        if (batch != null) {
             if (batch.hasShare(info)) {
                 if (V) Log.v(TAG, "Service cancel batch for share " + info.mId);
                 batch.cancelBatch();
@@ -946,7 +965,7 @@ public class BluetoothOppService extends Service {
                 removeBatch(batch);
             }
         }
-        mShares.remove(arrayPos);
+        mShares.remove(info.mId);
     }
 
     private String stringFromCursor(String old, Cursor cursor, String column) {
@@ -976,18 +995,19 @@ public class BluetoothOppService extends Service {
         return old;
     }
 
-    private int findBatchWithTimeStamp(long timestamp) {
-        for (int i = mBatchs.size() - 1; i >= 0; i--) {
-            if (mBatchs.get(i).mTimestamp == timestamp) {
-                return i;
-            }
-        }
-        return -1;
+    private BluetoothOppBatch findBatchWithTimeStamp(long timestamp) {
+        return mBatchsByTimestamp.get(timestamp);
+    }
+
+    private void addBatch(BluetoothOppBatch batch) {
+        mBatchs.add(batch);
+        mBatchsByTimestamp.put(batch.mTimestamp, batch);
     }
 
     private void removeBatch(BluetoothOppBatch batch) {
         if (V) Log.v(TAG, "Remove batch " + batch.mId);
         mBatchs.remove(batch);
+        mBatchsByTimestamp.remove(batch.mTimestamp);
         mBatchId--;
         BluetoothOppBatch nextBatch;
         if (mBatchs.size() > 0) {
@@ -1022,21 +1042,18 @@ public class BluetoothOppService extends Service {
         }
     }
 
-    private boolean needAction(int arrayPos) {
-        BluetoothOppShareInfo info = mShares.get(arrayPos);
+    private boolean needAction(BluetoothOppShareInfo info) {
         if (BluetoothShare.isStatusCompleted(info.mStatus)) {
             return false;
         }
         return true;
     }
 
-    private boolean visibleNotification(int arrayPos) {
-        BluetoothOppShareInfo info = mShares.get(arrayPos);
+    private boolean visibleNotification(BluetoothOppShareInfo info) {
         return info.hasCompletionNotification();
     }
 
-    private boolean scanFile(Cursor cursor, int arrayPos) {
-        BluetoothOppShareInfo info = mShares.get(arrayPos);
+    private boolean scanFile(BluetoothOppShareInfo info) {
         synchronized (BluetoothOppService.this) {
             if (D) Log.d(TAG, "Scanning file " + info.mFilename);
             if (!mMediaScanInProgress) {
@@ -1049,8 +1066,7 @@ public class BluetoothOppService extends Service {
         }
     }
 
-    private boolean shouldScanFile(int arrayPos) {
-        BluetoothOppShareInfo info = mShares.get(arrayPos);
+    private boolean shouldScanFile(BluetoothOppShareInfo info) {
         return BluetoothShare.isStatusSuccess(info.mStatus)
                 && info.mDirection == BluetoothShare.DIRECTION_INBOUND && !info.mMediaScanned &&
                 info.mConfirm != BluetoothShare.USER_CONFIRMATION_HANDOVER_CONFIRMED;
@@ -1151,47 +1167,7 @@ public class BluetoothOppService extends Service {
             cursorToFile = null;
         }
 
-        // Only keep the inbound and successful shares for LiverFolder use
-        // Keep the latest 1000 to easy db query
-        final String WHERE_INBOUND_SUCCESS = BluetoothShare.DIRECTION + "="
-                + BluetoothShare.DIRECTION_INBOUND + " AND " + BluetoothShare.STATUS + "="
-                + BluetoothShare.STATUS_SUCCESS + " AND " + INVISIBLE;
-        Cursor cursor;
-        try {
-            cursor = contentResolver.query(BluetoothShare.CONTENT_URI, new String[] {
-                        BluetoothShare._ID
-                    }, WHERE_INBOUND_SUCCESS, null, BluetoothShare._ID); // sort by id
-        } catch (SQLiteException e) {
-            cursor = null;
-            Log.e(TAG, "SQLite exception: " + e);
-        }
-
-        if (cursor == null) {
-            return;
-        }
-
-        int recordNum = cursor.getCount();
-        if (recordNum > Constants.MAX_RECORDS_IN_DATABASE) {
-            int numToDelete = recordNum - Constants.MAX_RECORDS_IN_DATABASE;
-
-            if (cursor.moveToPosition(numToDelete)) {
-                int columnId;
-                try {
-                    columnId = cursor.getColumnIndexOrThrow(BluetoothShare._ID);
-                } catch (IllegalArgumentException e) {
-                    cursor.close();
-                    cursor = null;
-                    Log.e(TAG, "Invalid share ID");
-                    return;
-                }
-                long id = cursor.getLong(columnId);
-                delNum = contentResolver.delete(BluetoothShare.CONTENT_URI,
-                        BluetoothShare._ID + " < " + id, null);
-                if (V) Log.v(TAG, "Deleted old inbound success share: " + delNum);
-            }
-        }
-        cursor.close();
-        cursor = null;
+        // The number of completed shares kept is capped by BluetoothOppProvider.
     }
 
     private static class MediaScannerNotifier implements MediaScannerConnectionClient {
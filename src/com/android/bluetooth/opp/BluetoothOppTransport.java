@@ -48,12 +48,37 @@ import javax.btobex.ObexHelper;
 public class BluetoothOppTransport implements ObexTransport {
 
     private static final String TAG = "BluetoothOppTransport";
+    private static final boolean V = Constants.VERBOSE;
     public static final int TYPE_RFCOMM = 0;
     public static final int TYPE_L2CAP = 1;
 
+    // Socket options understood by the stack.
+    private static final int SOCKET_OPT_PUT_MTU = 4;
+    private static final int SOCKET_OPT_CONGESTION = 5;
+
+    // Pauses between two congestion checks while the socket stays congested. The first one
+    // is the former fixed poll, so the status is never checked more often than it used to be.
+    private static final int MIN_CONGESTION_BACKOFF_MS = 5;
+    private static final int MAX_CONGESTION_BACKOFF_MS = 40;
+
+    // Pause after a write failed with "Try again", as the socket may not report congestion.
+    private static final int TRY_AGAIN_DELAY_MS = 10;
+
     private final BluetoothSocket mSocket;
     private final int mType;
 
+    // Socket option buffers, reused for every packet.
+    private final byte[] mMtuOption = new byte[4];
+    private final byte[] mCongestionOption = new byte[4];
+    private final ByteBuffer mMtuOptionBuffer =
+            ByteBuffer.wrap(mMtuOption).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer mCongestionOptionBuffer =
+            ByteBuffer.wrap(mCongestionOption).order(ByteOrder.LITTLE_ENDIAN);
+
+    // Last PUT MTU size set on the socket and the status it was set with.
+    private int mPutMtuSize = -1;
+    private int mPutMtuStatus;
+
     public BluetoothOppTransport(BluetoothSocket socket, int type) {
         super();
         this.mSocket = socket;
@@ -85,33 +110,75 @@ public class BluetoothOppTransport implements ObexTransport {
         return mSocket.getOutputStream();
     }
 
-    public int setPutSockMTUSize(int size) throws IOException {
-       ByteBuffer bb = ByteBuffer.allocate(4);
-       int status;
-       Log.v(TAG, "Interrupted waiting for size "+ size);
-       bb.order(ByteOrder.LITTLE_ENDIAN);
-       bb.putInt(0, size);
-       try {
-            status = mSocket.setSocketOpt(4, bb.array(), 4);
-          } catch (IOException ex) {
-             return -1;
-          }
-       return status;
+    /**
+     * Sets the PUT MTU size of the socket. The socket option is only updated
+     * when the size differs from the one set last.
+     */
+    public synchronized int setPutSockMTUSize(int size) throws IOException {
+        if (size == mPutMtuSize) {
+            return mPutMtuStatus;
+        }
+        if (V) Log.v(TAG, "setPutSockMTUSize " + size);
+        mMtuOptionBuffer.putInt(0, size);
+        try {
+            mPutMtuStatus = mSocket.setSocketOpt(SOCKET_OPT_PUT_MTU, mMtuOption, 4);
+        } catch (IOException ex) {
+            mPutMtuSize = -1;
+            return -1;
+        }
+        mPutMtuSize = size;
+        return mPutMtuStatus;
     }
 
     /**
      * Returns the Congestion status of the Socket
      */
-    public int getSockCongStatus() {
-        ByteBuffer bb = ByteBuffer.allocate(4);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
-        int status;
+    public synchronized int getSockCongStatus() {
         try {
-            status = mSocket.getSocketOpt(5, bb.array());
+            mSocket.getSocketOpt(SOCKET_OPT_CONGESTION, mCongestionOption);
         } catch (IOException ex) {
             return -1;
         }
-        return bb.getInt();
+        return mCongestionOptionBuffer.getInt(0);
+    }
+
+    /**
+     * Blocks until the socket is no longer congested. The stack does not
+     * signal when congestion clears, so the status is checked again after a
+     * pause that doubles from {@link #MIN_CONGESTION_BACKOFF_MS} up to
+     * {@link #MAX_CONGESTION_BACKOFF_MS}, for as long as the socket stays
+     * congested.
+     *
+     * @return false if the thread was interrupted while waiting.
+     */
+    public boolean waitUntilUncongested() {
+        int backoffMs = MIN_CONGESTION_BACKOFF_MS;
+        int congStatus;
+        while ((congStatus = getSockCongStatus()) != 0 && congStatus != -1) {
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            backoffMs = Math.min(backoffMs * 2, MAX_CONGESTION_BACKOFF_MS);
+        }
+        return true;
+    }
+
+    /**
+     * Blocks after a write failed with "Try again". The socket is not always
+     * flagged congested when that happens, so this pauses for at least
+     * {@link #TRY_AGAIN_DELAY_MS} before waiting for the congestion to clear.
+     *
+     * @return false if the thread was interrupted while waiting.
+     */
+    public boolean waitAfterWriteFailure() {
+        try {
+            Thread.sleep(TRY_AGAIN_DELAY_MS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return waitUntilUncongested();
     }
 
     public void connect() throws IOException {
@@ -184,6 +184,12 @@ public class Constants {
 
     public static final int MEDIA_SCANNED_SCANNED_FAILED = 2;
 
+    /**
+     * The column that holds the change sequence of a share, raised by the provider
+     * every time the share is inserted or updated
+     */
+    public static final String LAST_MODIFIED = "modified";
+
     /**
      * The MIME type(s) of we could share to other device.
      */
@@ -0,0 +1,46 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.UUID;
+
+/**
+ * Test cases for {@link AdvertiseDataParser}.
+ */
+public class AdvertiseDataParserTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testParseServiceUuids() {
+        byte[] data = new byte[] {
+                0x02, 0x01, 0x1A, // advertising flags
+                0x05, 0x02, 0x0B, 0x11, 0x0A, 0x11, // 16 bit service uuids
+                0x05, 0x05, 0x78, 0x56, 0x34, 0x12, // 32 bit service uuid
+                0x11, 0x07, 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07,
+                0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F, // 128 bit service uuid
+                0x04, (byte) 0xFF, (byte) 0xE0, 0x00, 0x02 }; // manufacturer specific data
+        AdvertiseDataParser parser = new AdvertiseDataParser();
+        assertTrue(parser.parse(data));
+
+        assertEquals(4, parser.getServiceUuidCount());
+        assertTrue(parser.hasServiceUuid(UUID.fromString("0000110B-0000-1000-8000-00805F9B34FB")));
+        assertTrue(parser.hasServiceUuid(UUID.fromString("0000110A-0000-1000-8000-00805F9B34FB")));
+        assertTrue(parser.hasServiceUuid(UUID.fromString("12345678-0000-1000-8000-00805F9B34FB")));
+        assertTrue(parser.hasServiceUuid(UUID.fromString("0F0E0D0C-0B0A-0908-0706-050403020100")));
+        assertFalse(parser.hasServiceUuid(UUID.fromString("0000110C-0000-1000-8000-00805F9B34FB")));
+
+        assertEquals(1, parser.getManufacturerIdCount());
+        assertEquals(0x00E0, parser.getManufacturerId(0));
+    }
+
+    @SmallTest
+    public void testParseMalformedData() {
+        AdvertiseDataParser parser = new AdvertiseDataParser();
+        assertFalse(parser.parse(new byte[] {
+                0x03, 0x03, 0x0B, 0x11, 0x09, 0x03, 0x0A }));
+        assertEquals(1, parser.getServiceUuidCount());
+        assertFalse(parser.parse(null));
+        assertEquals(0, parser.getServiceUuidCount());
+    }
+
+}
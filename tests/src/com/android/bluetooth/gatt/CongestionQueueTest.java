@@ -0,0 +1,65 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link CongestionQueue}.
+ */
+public class CongestionQueueTest extends AndroidTestCase {
+
+    private static CallbackInfo callback(int status) {
+        return new CallbackInfo("00:01:02:03:04:05", status);
+    }
+
+    @SmallTest
+    public void testFifoOrder() {
+        CongestionQueue queue = new CongestionQueue(4);
+        CallbackInfo first = callback(0);
+        CallbackInfo second = callback(1);
+        assertNull(queue.offer(first));
+        assertNull(queue.offer(second));
+        assertEquals(2, queue.size());
+
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @SmallTest
+    public void testFullQueueEvictsOldest() {
+        CongestionQueue queue = new CongestionQueue(2);
+        CallbackInfo first = callback(0);
+        CallbackInfo second = callback(1);
+        CallbackInfo third = callback(2);
+        queue.offer(first);
+        queue.offer(second);
+        assertSame(first, queue.offer(third));
+        assertEquals(2, queue.size());
+
+        assertSame(second, queue.poll());
+        assertSame(third, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @SmallTest
+    public void testWrapAround() {
+        CongestionQueue queue = new CongestionQueue(3);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(callback(i));
+            assertEquals(i, queue.poll().status);
+        }
+        assertEquals(0, queue.size());
+    }
+
+    @SmallTest
+    public void testCongestedState() {
+        CongestionQueue queue = new CongestionQueue(CongestionQueue.DEFAULT_CAPACITY);
+        assertFalse(queue.isCongested());
+        queue.setCongested(true);
+        assertTrue(queue.isCongested());
+        queue.setCongested(false);
+        assertFalse(queue.isCongested());
+    }
+}
@@ -0,0 +1,82 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link ScanFilterAllocator}.
+ */
+public class ScanFilterAllocatorTest extends AndroidTestCase {
+
+    private ScanFilterAllocator mAllocator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAllocator = new ScanFilterAllocator();
+    }
+
+    private static ScanFilterAllocator.Key key(String name, int deliveryMode) {
+        ScanFilterQueue queue = new ScanFilterQueue();
+        queue.addName(name);
+        return new ScanFilterAllocator.Key(queue.getEntries(), deliveryMode, 0);
+    }
+
+    @SmallTest
+    public void testInit() {
+        assertFalse(mAllocator.isInitialized());
+        mAllocator.init(1, 3);
+        assertTrue(mAllocator.isInitialized());
+    }
+
+    @SmallTest
+    public void testSharedSlot() {
+        mAllocator.init(1, 4);
+        ScanFilterAllocator.Slot first = mAllocator.acquire(key("a", 0), true);
+        ScanFilterAllocator.Slot second = mAllocator.acquire(key("a", 0), true);
+        assertSame(first, second);
+        assertEquals(2, second.refCount);
+
+        // The slot is only freed with its last reference
+        assertFalse(mAllocator.release(first.filterIndex));
+        assertTrue(mAllocator.release(first.filterIndex));
+        assertFalse(mAllocator.release(first.filterIndex));
+    }
+
+    @SmallTest
+    public void testDifferentKeysGetDifferentSlots() {
+        mAllocator.init(1, 4);
+        ScanFilterAllocator.Slot first = mAllocator.acquire(key("a", 0), true);
+        ScanFilterAllocator.Slot otherName = mAllocator.acquire(key("b", 0), true);
+        ScanFilterAllocator.Slot otherMode = mAllocator.acquire(key("a", 1), true);
+        assertTrue(first.filterIndex != otherName.filterIndex);
+        assertTrue(first.filterIndex != otherMode.filterIndex);
+        assertTrue(otherName.filterIndex != otherMode.filterIndex);
+    }
+
+    @SmallTest
+    public void testUnshareableSlot() {
+        mAllocator.init(1, 4);
+        ScanFilterAllocator.Slot first = mAllocator.acquire(key("a", 0), false);
+        ScanFilterAllocator.Slot second = mAllocator.acquire(key("a", 0), true);
+        assertTrue(first.filterIndex != second.filterIndex);
+        assertEquals(1, first.refCount);
+        assertEquals(1, second.refCount);
+    }
+
+    @SmallTest
+    public void testExhaustionAndReuse() {
+        mAllocator.init(1, 3);
+        ScanFilterAllocator.Slot first = mAllocator.acquire(key("a", 0), true);
+        assertNotNull(mAllocator.acquire(key("b", 0), true));
+        assertNull(mAllocator.acquire(key("c", 0), true));
+        // A shared hit does not need a free index
+        assertSame(first, mAllocator.acquire(key("a", 0), true));
+
+        assertFalse(mAllocator.release(first.filterIndex));
+        assertTrue(mAllocator.release(first.filterIndex));
+        ScanFilterAllocator.Slot reused = mAllocator.acquire(key("c", 0), true);
+        assertNotNull(reused);
+        assertEquals(first.filterIndex, reused.filterIndex);
+    }
+}
@@ -0,0 +1,45 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanSettings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for the scan routing of {@link ScanManager}.
+ */
+public class ScanManagerTest extends AndroidTestCase {
+
+    private static final ScanSettings REGULAR = new ScanSettings.Builder().build();
+    private static final ScanSettings BATCH = new ScanSettings.Builder()
+            .setReportDelay(1000).build();
+
+    @SmallTest
+    public void testFilteringWithoutBatching() {
+        // Software batching off: batch scans go to the controller as before.
+        assertTrue(ScanManager.isScanSupported(BATCH, true, false, false));
+        assertTrue(ScanManager.isBatchClient(BATCH, false, false));
+        assertFalse(ScanManager.isSoftwareBatchClient(BATCH, false, false));
+
+        // Software batching on: batch scans are coalesced on the host.
+        assertTrue(ScanManager.isScanSupported(BATCH, true, false, true));
+        assertFalse(ScanManager.isBatchClient(BATCH, false, true));
+        assertTrue(ScanManager.isSoftwareBatchClient(BATCH, false, true));
+    }
+
+    @SmallTest
+    public void testNoOffload() {
+        assertTrue(ScanManager.isScanSupported(REGULAR, false, false, false));
+        assertFalse(ScanManager.isScanSupported(BATCH, false, false, false));
+        assertTrue(ScanManager.isScanSupported(BATCH, false, false, true));
+        assertTrue(ScanManager.isSoftwareBatchClient(BATCH, false, true));
+    }
+
+    @SmallTest
+    public void testBatchingSupported() {
+        assertTrue(ScanManager.isBatchClient(BATCH, true, false));
+        assertTrue(ScanManager.isBatchClient(BATCH, true, true));
+        assertFalse(ScanManager.isSoftwareBatchClient(BATCH, true, true));
+        assertFalse(ScanManager.isBatchClient(REGULAR, true, true));
+        assertFalse(ScanManager.isSoftwareBatchClient(REGULAR, false, true));
+    }
+}
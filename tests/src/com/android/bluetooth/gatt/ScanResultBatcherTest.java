@@ -0,0 +1,58 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanResult;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanResultBatcher}.
+ */
+public class ScanResultBatcherTest extends AndroidTestCase {
+
+    private static ScanResult result(long timestampNanos) {
+        return new ScanResult(null, null, -50, timestampNanos);
+    }
+
+    @SmallTest
+    public void testDefaultMaxResults() {
+        assertEquals(ScanResultBatcher.DEFAULT_MAX_RESULTS,
+                new ScanResultBatcher().getMaxResults());
+        assertEquals(5, new ScanResultBatcher(5).getMaxResults());
+    }
+
+    @SmallTest
+    public void testBatchesArePerClient() {
+        ScanResultBatcher batcher = new ScanResultBatcher();
+        ScanResult first = result(1);
+        ScanResult second = result(2);
+        ScanResult other = result(3);
+        assertEquals(1, batcher.add(1, first));
+        assertEquals(2, batcher.add(1, second));
+        assertEquals(1, batcher.add(2, other));
+
+        List<ScanResult> results = batcher.drain(1);
+        assertEquals(2, results.size());
+        assertSame(first, results.get(0));
+        assertSame(second, results.get(1));
+        // Draining empties the batch of that client only
+        assertNull(batcher.drain(1));
+        assertEquals(2, batcher.add(2, result(4)));
+    }
+
+    @SmallTest
+    public void testRemoveAndClear() {
+        ScanResultBatcher batcher = new ScanResultBatcher();
+        batcher.add(1, result(1));
+        batcher.add(2, result(2));
+        batcher.remove(1);
+        assertNull(batcher.drain(1));
+        assertNotNull(batcher.drain(2));
+
+        batcher.add(1, result(3));
+        batcher.clear();
+        assertNull(batcher.drain(1));
+        assertEquals(1, batcher.add(1, result(4)));
+    }
+}
@@ -0,0 +1,105 @@
+package com.android.bluetooth.map;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.map.BluetoothMapContentObserver.Event;
+import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+
+/**
+ * Test cases for {@link BluetoothMnsEventQueue}.
+ */
+public class BluetoothMnsEventQueueTest extends AndroidTestCase {
+    private static final int MAS_ID = 0;
+
+    private BluetoothMapContentObserver mObserver;
+    private BluetoothMnsEventQueue mQueue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mObserver = new BluetoothMapContentObserver(getContext());
+        mQueue = new BluetoothMnsEventQueue();
+    }
+
+    private Event event(String type, long handle, String folder, String oldFolder) {
+        return mObserver.new Event(type, handle, folder, oldFolder, TYPE.SMS_GSM);
+    }
+
+    @SmallTest
+    public void testDeleteBeforeReportDropsMessageEvents() {
+        mQueue.offer(event("NewMessage", 1, "inbox", null), MAS_ID);
+        mQueue.offer(event("NewMessage", 2, "inbox", null), MAS_ID);
+        mQueue.offer(event("MessageShift", 1, "sent", "inbox"), MAS_ID);
+        mQueue.offer(event("MessageDeleted", 1, "deleted", null), MAS_ID);
+
+        BluetoothMnsEventQueue.Entry entry = mQueue.poll();
+        assertEquals("NewMessage", entry.event.eventType);
+        assertEquals(2, entry.event.handle);
+        assertNull(mQueue.poll());
+    }
+
+    @SmallTest
+    public void testDeleteOfReportedMessageIsKept() {
+        mQueue.offer(event("MessageShift", 1, "sent", "inbox"), MAS_ID);
+        mQueue.offer(event("MessageDeleted", 1, "deleted", null), MAS_ID);
+
+        assertEquals("MessageShift", mQueue.poll().event.eventType);
+        assertEquals("MessageDeleted", mQueue.poll().event.eventType);
+        assertNull(mQueue.poll());
+    }
+
+    @SmallTest
+    public void testConsecutiveShiftsAreFolded() {
+        mQueue.offer(event("MessageShift", 1, "outbox", "draft"), MAS_ID);
+        mQueue.offer(event("MessageShift", 1, "sent", "outbox"), MAS_ID);
+
+        BluetoothMnsEventQueue.Entry entry = mQueue.poll();
+        assertEquals("MessageShift", entry.event.eventType);
+        assertEquals("telecom/msg/sent", entry.event.folder);
+        assertEquals("telecom/msg/draft", entry.event.oldFolder);
+        assertNull(mQueue.poll());
+    }
+
+    @SmallTest
+    public void testShiftBackIsDropped() {
+        mQueue.offer(event("MessageShift", 1, "deleted", "inbox"), MAS_ID);
+        mQueue.offer(event("MessageShift", 1, "inbox", "deleted"), MAS_ID);
+
+        assertNull(mQueue.poll());
+    }
+
+    @SmallTest
+    public void testIdenticalEventsAreDeduplicated() {
+        mQueue.offer(event("NewMessage", 1, "inbox", null), MAS_ID);
+        mQueue.offer(event("NewMessage", 1, "inbox", null), MAS_ID);
+        // Same event from another MAS instance is a different message
+        mQueue.offer(event("NewMessage", 1, "inbox", null), MAS_ID + 1);
+
+        assertEquals(MAS_ID, mQueue.poll().masId);
+        assertEquals(MAS_ID + 1, mQueue.poll().masId);
+        assertNull(mQueue.poll());
+    }
+
+    @SmallTest
+    public void testFullQueueDropsOldest() {
+        for (int i = 0; i <= BluetoothMnsEventQueue.MAX_EVENTS; i++) {
+            mQueue.offer(event("NewMessage", i, "inbox", null), MAS_ID);
+        }
+
+        assertEquals(1, mQueue.poll().event.handle);
+        int count = 1;
+        while (mQueue.poll() != null) {
+            count++;
+        }
+        assertEquals(BluetoothMnsEventQueue.MAX_EVENTS, count);
+    }
+
+    @SmallTest
+    public void testClear() {
+        mQueue.offer(event("NewMessage", 1, "inbox", null), MAS_ID);
+        mQueue.clear();
+
+        assertNull(mQueue.poll());
+    }
+}